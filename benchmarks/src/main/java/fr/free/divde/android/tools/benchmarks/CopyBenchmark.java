@@ -0,0 +1,87 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.benchmarks;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Section copy: BinaryUtils.copyBytes with and without message digest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"1048576", "16777216", "268435456"})
+    private int sectionSize;
+    private File directory;
+    private RandomAccessFile source;
+    private RandomAccessFile destination;
+    private MessageDigest sha;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("copy-benchmark").toFile();
+        source = new RandomAccessFile(SyntheticImages.createRandomFile(directory, "source.img", sectionSize), "r");
+        destination = new RandomAccessFile(new File(directory, "destination.img"), "rw");
+        sha = MessageDigest.getInstance("SHA-1");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        source.close();
+        destination.close();
+        SyntheticImages.delete(directory);
+    }
+
+    @Benchmark
+    public void copy() throws IOException {
+        source.seek(0);
+        destination.seek(0);
+        BinaryUtils.copyBytes(source, destination, sectionSize, null);
+    }
+
+    @Benchmark
+    public byte[] copyWithDigest() throws IOException {
+        source.seek(0);
+        destination.seek(0);
+        BinaryUtils.copyBytes(source, destination, sectionSize, sha);
+        return sha.digest();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.benchmarks;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.bootimg.BootImageFile;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header codec: BootImageFile read/write and the BinaryUtils primitives it relies on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderCodecBenchmark {
+
+    @Param({"2048", "4096", "8192", "16384"})
+    private int pageSize;
+    private File directory;
+    private RandomAccessFile image;
+    private RandomAccessFile output;
+    private BootImageFile header;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("header-benchmark").toFile();
+        image = new RandomAccessFile(SyntheticImages.createImage(directory, pageSize, 64 * 1024), "r");
+        output = new RandomAccessFile(new File(directory, "header.img"), "rw");
+        header = new BootImageFile();
+        header.read(image);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        image.close();
+        output.close();
+        SyntheticImages.delete(directory);
+    }
+
+    @Benchmark
+    public BootImageFile readHeader() throws IOException {
+        BootImageFile result = new BootImageFile();
+        result.read(image);
+        return result;
+    }
+
+    @Benchmark
+    public void writeHeader() throws IOException {
+        header.write(output);
+    }
+
+    @Benchmark
+    public int readIntLittleEndian() throws IOException {
+        image.seek(BootImageFile.BOOT_MAGIC_SIZE);
+        return BinaryUtils.readIntLittleEndian(image);
+    }
+
+    @Benchmark
+    public String readArgs() throws IOException {
+        image.seek(BootImageFile.BOOT_MAGIC_SIZE + 10 * 4 + BootImageFile.BOOT_NAME_SIZE);
+        return BinaryUtils.readString(image, BootImageFile.BOOT_ARGS_SIZE);
+    }
+
+    @Benchmark
+    public void fillPagePadding() throws IOException {
+        output.seek(0);
+        BinaryUtils.fillPadding(output, pageSize - 1);
+    }
+}
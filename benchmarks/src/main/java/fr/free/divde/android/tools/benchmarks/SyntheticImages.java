@@ -0,0 +1,88 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.benchmarks;
+
+import fr.free.divde.android.tools.bootimg.MakeBootImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Generates the synthetic files used by the benchmarks.
+ */
+public class SyntheticImages {
+
+    /**
+     * Creates a file filled with size pseudo-random bytes.
+     */
+    public static File createRandomFile(File directory, String name, int size) throws IOException {
+        File file = new File(directory, name);
+        Random random = new Random(size);
+        byte[] chunk = new byte[64 * 1024];
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(0);
+            int remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(chunk);
+                int length = Math.min(remaining, chunk.length);
+                access.write(chunk, 0, length);
+                remaining -= length;
+            }
+        } finally {
+            access.close();
+        }
+        return file;
+    }
+
+    /**
+     * Creates a boot image with a kernel and a ramdisk of sectionSize bytes each, and returns it.
+     */
+    public static File createImage(File directory, int pageSize, int sectionSize) throws Exception {
+        MakeBootImage task = createTask(new MakeBootImage());
+        task.setKernel(createRandomFile(directory, "kernel.img", sectionSize));
+        task.setRamdisk(createRandomFile(directory, "ramdisk.img", sectionSize));
+        task.setBootImage(new File(directory, "boot.img"));
+        task.setPageSize(Integer.toString(pageSize));
+        task.setName("benchmark");
+        task.setArgs("console=ttyS0 androidboot.hardware=benchmark");
+        task.make();
+        return task.getBootImage();
+    }
+
+    /**
+     * Binds the task to a project without any listener, so that it does not log anything.
+     */
+    public static <T extends Task> T createTask(T task) {
+        task.setProject(new Project());
+        return task;
+    }
+
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.benchmarks;
+
+import fr.free.divde.android.tools.bootimg.BootImageFile;
+import fr.free.divde.android.tools.bootimg.ExtractBootImage;
+import fr.free.divde.android.tools.bootimg.MakeBootImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full extractBootImage and makeBootImage runs over synthetic images.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskBenchmark {
+
+    @Param({"2048", "16384"})
+    private int pageSize;
+    @Param({"1048576", "16777216", "268435456"})
+    private int sectionSize;
+    private File directory;
+    private ExtractBootImage extractTask;
+    private MakeBootImage makeTask;
+    private MakeBootImage pipelinedMakeTask;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("task-benchmark").toFile();
+        File bootImage = SyntheticImages.createImage(directory, pageSize, sectionSize);
+        extractTask = SyntheticImages.createTask(new ExtractBootImage());
+        extractTask.setBootImage(bootImage);
+        extractTask.setKernel(new File(directory, "extracted-kernel.img"));
+        extractTask.setRamdisk(new File(directory, "extracted-ramdisk.img"));
+        makeTask = createMakeTask(false);
+        pipelinedMakeTask = createMakeTask(true);
+    }
+
+    private MakeBootImage createMakeTask(boolean pipelined) {
+        MakeBootImage task = SyntheticImages.createTask(new MakeBootImage());
+        task.setKernel(new File(directory, "kernel.img"));
+        task.setRamdisk(new File(directory, "ramdisk.img"));
+        task.setBootImage(new File(directory, "rebuilt.img"));
+        task.setPageSize(Integer.toString(pageSize));
+        task.setPipelined(pipelined);
+        return task;
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticImages.delete(directory);
+    }
+
+    @Benchmark
+    public BootImageFile extract() throws Exception {
+        return extractTask.extract();
+    }
+
+    @Benchmark
+    public BootImageFile make() throws Exception {
+        return makeTask.make();
+    }
+
+    @Benchmark
+    public BootImageFile makePipelined() throws Exception {
+        return pipelinedMakeTask.make();
+    }
+}
@@ -17,13 +17,129 @@
  */
 package fr.free.divde.android.tools;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 
 public class BinaryUtils {
 
-    public static int COPY_CHUNK_SIZE = 10000;
+    /** system property giving the default size of the copy buffers, in bytes */
+    public static final String CHUNK_SIZE_PROPERTY = "fr.free.divde.android.tools.chunkSize";
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    /** maximum number of buffers and digests kept by each pool */
+    private static final int POOL_SIZE = 64;
+    private static final int ZERO_CHUNK_SIZE = 64 * 1024;
+    private static final byte[] ZEROS = new byte[ZERO_CHUNK_SIZE];
+    private static volatile int chunkSize = Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE);
+    private static final ArrayDeque<ByteBuffer> directBuffers = new ArrayDeque<ByteBuffer>();
+    private static final ArrayDeque<byte[]> arrays = new ArrayDeque<byte[]>();
+    private static final ArrayDeque<MessageDigest> sha1Digests = new ArrayDeque<MessageDigest>();
+
+    /**
+     * Returns the size of the buffers used to copy and hash data.
+     */
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Changes the size of the buffers used to copy and hash data. Pooled buffers of the previous size are dropped when
+     * they are released.
+     */
+    public static void setChunkSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException(String.format("Unsupported value for chunkSize (%d<=0).", size));
+        }
+        chunkSize = size;
+    }
+
+    /**
+     * Returns a cleared direct buffer of {@link #getChunkSize} bytes, taken from a pool shared by all threads. It must be
+     * given back with {@link #release(ByteBuffer)} once it is no longer used.
+     */
+    public static ByteBuffer acquireBuffer() {
+        int size = chunkSize;
+        synchronized (directBuffers) {
+            ByteBuffer buffer = directBuffers.pollFirst();
+            if (buffer != null && buffer.capacity() == size) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != chunkSize) {
+            return;
+        }
+        synchronized (directBuffers) {
+            if (directBuffers.size() < POOL_SIZE) {
+                directBuffers.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns an array of {@link #getChunkSize} bytes, taken from a pool shared by all threads. It must be given back
+     * with {@link #release(byte[])} once it is no longer used.
+     */
+    public static byte[] acquireArray() {
+        int size = chunkSize;
+        synchronized (arrays) {
+            byte[] array = arrays.pollFirst();
+            if (array != null && array.length == size) {
+                return array;
+            }
+        }
+        return new byte[size];
+    }
+
+    public static void release(byte[] array) {
+        if (array == null || array.length != chunkSize) {
+            return;
+        }
+        synchronized (arrays) {
+            if (arrays.size() < POOL_SIZE) {
+                arrays.addFirst(array);
+            }
+        }
+    }
+
+    /**
+     * Returns a SHA-1 message digest in its initial state, taken from a pool shared by all threads. It must be given
+     * back with {@link #release(MessageDigest)} once it is no longer used.
+     */
+    public static MessageDigest acquireSha1() throws NoSuchAlgorithmException {
+        synchronized (sha1Digests) {
+            MessageDigest sha = sha1Digests.pollFirst();
+            if (sha != null) {
+                return sha;
+            }
+        }
+        return MessageDigest.getInstance("SHA-1");
+    }
+
+    public static void release(MessageDigest sha) {
+        if (sha == null || !"SHA-1".equals(sha.getAlgorithm())) {
+            return;
+        }
+        sha.reset();
+        synchronized (sha1Digests) {
+            if (sha1Digests.size() < POOL_SIZE) {
+                sha1Digests.addFirst(sha);
+            }
+        }
+    }
 
     public static int readIntLittleEndian(RandomAccessFile file) throws IOException {
         int a = file.readByte() & 0xFF;
@@ -56,8 +172,51 @@ public class BinaryUtils {
         md.update((byte) d);
     }
 
+    public static String readString(ByteBuffer buffer, int size) {
+        int lastNonNullChar = -1;
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            int c = buffer.get() & 0xFF;
+            if (c != 0) {
+                lastNonNullChar = i;
+            }
+            builder.append((char) c);
+        }
+        return builder.toString().substring(0, lastNonNullChar + 1);
+    }
+
+    public static void writeString(ByteBuffer buffer, int size, String text) {
+        int textLength = text.length();
+        int remainingSize = size - textLength;
+        if (remainingSize < 0) {
+            throw new IllegalArgumentException(String.format("String is too long: '%s' is longer than %d", text, size));
+        }
+        for (int i = 0; i < textLength; i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+        for (int i = 0; i < remainingSize; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    public static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int sizeRead = channel.read(buffer, position);
+            if (sizeRead == -1) {
+                throw new IOException(String.format("End of file reached too early. Still %d bytes to read.", buffer.remaining()));
+            }
+            position += sizeRead;
+        }
+    }
+
+    public static void writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
     public static String readString(RandomAccessFile file, int size) throws IOException {
-        int lastNonNullChar = 0;
+        int lastNonNullChar = -1;
         StringBuilder builder = new StringBuilder(size);
         for (int i = 0; i < size; i++) {
             int c = file.read();
@@ -79,28 +238,176 @@ public class BinaryUtils {
         fillPadding(file, remainingSize);
     }
 
-    public static void copyBytes(RandomAccessFile srcFile, RandomAccessFile dstFile, int length, MessageDigest messageDigest) throws IOException {
-        byte[] chunk = new byte[Math.min(length, COPY_CHUNK_SIZE)];
-        while (length > 0) {
-            int sizeToRead = Math.min(length, COPY_CHUNK_SIZE);
-            int sizeRead = srcFile.read(chunk, 0, sizeToRead);
-            if (sizeRead == -1) {
-                throw new IOException(String.format("End of source file reached too early. Still %d bytes to read.", length));
+    public static long copyBytes(RandomAccessFile srcFile, RandomAccessFile dstFile, long length, MessageDigest messageDigest) throws IOException {
+        FileChannel srcChannel = srcFile.getChannel();
+        FileChannel dstChannel = dstFile.getChannel();
+        long srcPosition = srcChannel.position();
+        long dstPosition = dstChannel.position();
+        long chunks = copyBytes(srcChannel, srcPosition, dstChannel, dstPosition, length, messageDigest);
+        srcChannel.position(srcPosition + length);
+        return chunks;
+    }
+
+    /**
+     * Copies length bytes from srcPosition in srcChannel to dstPosition in dstChannel. The position of srcChannel is not
+     * changed, the position of dstChannel is left just after the copied bytes. When no message digest is given, the copy
+     * is delegated to the operating system through {@link FileChannel#transferTo}. Otherwise, the bytes go through a
+     * pooled direct buffer so that they can be fed to the message digest. Returns the number of chunks (transfers or
+     * reads) needed for the copy.
+     */
+    public static long copyBytes(FileChannel srcChannel, long srcPosition, FileChannel dstChannel, long dstPosition, long length, MessageDigest messageDigest) throws IOException {
+        if (messageDigest == null) {
+            return transferBytes(srcChannel, srcPosition, dstChannel, dstPosition, length);
+        }
+        ByteBuffer chunk = acquireBuffer();
+        try {
+            long chunks = 0;
+            while (length > 0) {
+                chunks++;
+                chunk.clear();
+                if (chunk.capacity() > length) {
+                    chunk.limit((int) length);
+                }
+                int sizeRead = srcChannel.read(chunk, srcPosition);
+                if (sizeRead == -1) {
+                    throw new IOException(String.format("End of source file reached too early. Still %d bytes to read.", length));
+                }
+                chunk.flip();
+                messageDigest.update(chunk);
+                chunk.rewind();
+                writeFully(dstChannel, dstPosition, chunk);
+                dstPosition += sizeRead;
+                srcPosition += sizeRead;
+                length -= sizeRead;
             }
-            if (messageDigest != null) {
-                messageDigest.update(chunk, 0, sizeRead);
+            dstChannel.position(dstPosition);
+            return chunks;
+        } finally {
+            release(chunk);
+        }
+    }
+
+    private static long transferBytes(FileChannel srcChannel, long srcPosition, FileChannel dstChannel, long dstPosition, long length) throws IOException {
+        dstChannel.position(dstPosition);
+        long chunks = 0;
+        while (length > 0) {
+            chunks++;
+            long sizeTransferred = srcChannel.transferTo(srcPosition, length, dstChannel);
+            if (sizeTransferred <= 0) {
+                if (srcPosition >= srcChannel.size()) {
+                    throw new IOException(String.format("End of source file reached too early. Still %d bytes to read.", length));
+                }
+                continue;
             }
-            dstFile.write(chunk, 0, sizeRead);
-            length -= sizeRead;
+            srcPosition += sizeTransferred;
+            length -= sizeTransferred;
         }
+        return chunks;
     }
 
+    /**
+     * Writes size zero bytes at the current position of the file, in chunks of up to 64 KB.
+     */
     public static void fillPadding(RandomAccessFile file, int size) throws IOException {
         if (size < 0) {
             throw new IOException(String.format("Negative padding: %d", size));
         }
-        for (int i = 0; i < size; i++) {
-            file.writeByte(0);
+        while (size > 0) {
+            int zeros = Math.min(size, ZERO_CHUNK_SIZE);
+            file.write(ZEROS, 0, zeros);
+            size -= zeros;
+        }
+    }
+
+    /**
+     * Moves the current position of the file after size bytes which are known to be zero already, for example because
+     * the file was created by {@link #preallocate}. Returns the number of zero bytes which had to be written, which is
+     * only more than 0 if the padding goes beyond the end of the file.
+     */
+    public static int skipPadding(RandomAccessFile file, int size) throws IOException {
+        if (size < 0) {
+            throw new IOException(String.format("Negative padding: %d", size));
+        }
+        long position = file.getFilePointer();
+        long beyondEnd = position + size - file.length();
+        if (beyondEnd > 0) {
+            int zeros = (int) Math.min(beyondEnd, size);
+            file.seek(position + size - zeros);
+            fillPadding(file, zeros);
+            return zeros;
+        }
+        file.seek(position + size);
+        return 0;
+    }
+
+    /**
+     * Empties the file, then extends it to length bytes. All the bytes of the file are then zero, so that padding can
+     * be skipped with {@link #skipPadding} instead of being written. The file system allocates the blocks when the
+     * content is written (Java gives no portable access to fallocate), and blocks which are never written stay sparse.
+     */
+    public static void preallocate(RandomAccessFile file, long length) throws IOException {
+        file.setLength(0);
+        file.setLength(length);
+    }
+
+    /**
+     * Opens file for writing as a new empty file. An existing file is deleted rather than truncated, as it may be a hard
+     * link to a file of a section store, which must not change.
+     */
+    public static RandomAccessFile createFile(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        return new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Opens an output stream writing file as a new file, deleting any existing file like {@link #createFile}.
+     */
+    public static OutputStream createOutputStream(File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        return new FileOutputStream(file);
+    }
+
+    /**
+     * Returns an input stream which reads the remaining bytes of the given buffer, without changing its position.
+     */
+    public static InputStream newInputStream(ByteBuffer buffer) {
+        final ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                if (!source.hasRemaining()) {
+                    return -1;
+                }
+                int size = Math.min(length, source.remaining());
+                source.get(bytes, offset, size);
+                return size;
+            }
+
+            @Override
+            public long skip(long length) {
+                int size = (int) Math.max(0, Math.min(length, source.remaining()));
+                source.position(source.position() + size);
+                return size;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b & 0xFF));
         }
+        return builder.toString();
     }
 }
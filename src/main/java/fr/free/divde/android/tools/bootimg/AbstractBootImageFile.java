@@ -0,0 +1,213 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Header of an image made of a header followed by sections, each of them starting on a page boundary. Subclasses
+ * describe the fields of each header version and the sizes of their sections, the layout is computed here.
+ */
+public abstract class AbstractBootImageFile {
+
+    /** number of bytes needed to know the kind and version of a header */
+    public static final int VERSION_PREFIX_SIZE = 44;
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFER = new ThreadLocal<ByteBuffer>();
+
+    public abstract int getPageSize();
+
+    public abstract int getHeaderVersion();
+
+    /** size of the header fields of this version, not including their padding */
+    public abstract int getHeaderSize();
+
+    /** names of the sections following the header, in the order of the file */
+    protected abstract String[] getSectionNames();
+
+    /** sizes of the sections following the header, in the same order as their names */
+    protected abstract int[] getSectionSizes();
+
+    /**
+     * Decodes the header fields from the given little endian buffer, starting at its current position.
+     */
+    public abstract void decode(ByteBuffer header);
+
+    /**
+     * Encodes the header fields into the given little endian buffer, starting at its current position.
+     */
+    public abstract void encode(ByteBuffer header);
+
+    public abstract void check() throws IOException;
+
+    /**
+     * Returns an empty header of the kind and version given by the first VERSION_PREFIX_SIZE bytes of an image,
+     * starting at the current position of prefix, which is not changed.
+     */
+    public static AbstractBootImageFile forPrefix(ByteBuffer prefix) throws IOException {
+        ByteBuffer buffer = prefix.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = buffer.position();
+        String magic = BinaryUtils.readString(buffer, BootImageFile.BOOT_MAGIC_SIZE);
+        if (BootImageFile.BOOT_MAGIC.equals(magic)) {
+            BootImageFile header = new BootImageFile();
+            header.setHeaderVersion(BootImageFile.readHeaderVersion(buffer, start));
+            return header;
+        }
+        if (VendorBootImageFile.VENDOR_BOOT_MAGIC.equals(magic)) {
+            VendorBootImageFile header = new VendorBootImageFile();
+            header.setHeaderVersion(buffer.getInt(start + VendorBootImageFile.HEADER_VERSION_OFFSET));
+            return header;
+        }
+        throw new InvalidObjectException(String.format("Invalid boot magic. Expected '%s' or '%s', found '%s'.", BootImageFile.BOOT_MAGIC, VendorBootImageFile.VENDOR_BOOT_MAGIC, magic));
+    }
+
+    /**
+     * Reads the header of a boot or vendor_boot image of any supported version.
+     */
+    public static AbstractBootImageFile readAny(FileChannel channel) throws IOException {
+        ByteBuffer prefix = getHeaderBuffer(VERSION_PREFIX_SIZE);
+        BinaryUtils.readFully(channel, 0, prefix);
+        prefix.flip();
+        AbstractBootImageFile header = forPrefix(prefix);
+        header.read(channel);
+        return header;
+    }
+
+    public void read(RandomAccessFile file) throws IOException {
+        read(file.getChannel());
+        file.seek(getHeaderPageSize());
+    }
+
+    public void read(FileChannel channel) throws IOException {
+        ByteBuffer prefix = getHeaderBuffer(VERSION_PREFIX_SIZE);
+        BinaryUtils.readFully(channel, 0, prefix);
+        prefix.flip();
+        setVersionFromPrefix(prefix);
+        ByteBuffer header = getHeaderBuffer(getHeaderSize());
+        BinaryUtils.readFully(channel, 0, header);
+        header.flip();
+        decode(header);
+        check();
+        long fileSize = channel.size();
+        long expectedFileSize = getFileSize();
+        if (fileSize < expectedFileSize) {
+            throw new InvalidObjectException(String.format("File size is smaller than expected. Expected %d bytes, found %d bytes.", expectedFileSize, fileSize));
+        }
+    }
+
+    /**
+     * Sets the version of this header from the prefix of an image, so that the size of the header is known before
+     * decoding it. The kind of header given by the prefix must be the kind of this object.
+     */
+    protected void setVersionFromPrefix(ByteBuffer prefix) throws IOException {
+        AbstractBootImageFile prefixHeader = forPrefix(prefix);
+        if (prefixHeader.getClass() != getClass()) {
+            throw new InvalidObjectException(String.format("Unexpected kind of image: %s instead of %s.", prefixHeader.getClass().getSimpleName(), getClass().getSimpleName()));
+        }
+        setHeaderVersion(prefixHeader.getHeaderVersion());
+    }
+
+    protected abstract void setHeaderVersion(int headerVersion);
+
+    public void write(RandomAccessFile file) throws IOException {
+        write(file.getChannel());
+        file.seek(getHeaderPageSize());
+    }
+
+    /**
+     * Writes the header and its padding up to the first section in a single write at the start of the channel.
+     */
+    public void write(FileChannel channel) throws IOException {
+        check();
+        ByteBuffer header = getHeaderBuffer((int) getHeaderPageSize());
+        encode(header);
+        while (header.hasRemaining()) {
+            header.put((byte) 0);
+        }
+        header.flip();
+        BinaryUtils.writeFully(channel, 0, header);
+    }
+
+    protected static ByteBuffer getHeaderBuffer(int size) {
+        ByteBuffer buffer = HEADER_BUFFER.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, BootImageFile.DEFAULT_PAGE_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+            HEADER_BUFFER.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public int computePadding(long size) {
+        int lastPageBytes = (int) (size % getPageSize());
+        if (lastPageBytes == 0) {
+            return 0;
+        } else {
+            return getPageSize() - lastPageBytes;
+        }
+    }
+
+    /**
+     * Returns the size of the header with its padding, which is the position of the first section.
+     */
+    public long getHeaderPageSize() {
+        return getHeaderSize() + computePadding(getHeaderSize());
+    }
+
+    /**
+     * Returns the sections following the header, in the order of the file. Empty sections take no space.
+     */
+    public List<BootImageSection> getSections() {
+        String[] names = getSectionNames();
+        int[] sizes = getSectionSizes();
+        List<BootImageSection> sections = new ArrayList<BootImageSection>(names.length);
+        long position = getHeaderPageSize();
+        for (int i = 0; i < names.length; i++) {
+            BootImageSection section = new BootImageSection(names[i], position, sizes[i], computePadding(sizes[i]));
+            sections.add(section);
+            position = section.getEnd();
+        }
+        return Collections.unmodifiableList(sections);
+    }
+
+    /**
+     * Returns the section with the given name, or null if this version of the header has no such section.
+     */
+    public BootImageSection getSection(String name) {
+        for (BootImageSection section : getSections()) {
+            if (section.getName().equals(name)) {
+                return section;
+            }
+        }
+        return null;
+    }
+
+    public long getFileSize() {
+        List<BootImageSection> sections = getSections();
+        return sections.isEmpty() ? getHeaderPageSize() : sections.get(sections.size() - 1).getEnd();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Builds a boot image from an older image and a delta file written by diffBootImage.
+ */
+@Getter
+@Setter
+public class ApplyBootImageDelta extends BootImageTask {
+
+    /** input file: the image the delta applies to */
+    private File oldImage;
+    /** input file */
+    private File delta;
+    /** output file */
+    private File newImage;
+    /** check the SHA-1 of each region of the new image and of the whole new image */
+    private boolean verify = true;
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            apply();
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Writes the new image.
+     */
+    public void apply() throws IOException, NoSuchAlgorithmException {
+        TaskMetrics metrics = new TaskMetrics("applyBootImageDelta", String.valueOf(newImage));
+        log(String.format("Applying boot image delta: %s", delta));
+        long start = metrics.now();
+        BootImageDelta.apply(oldImage, delta, newImage, verify);
+        metrics.record("apply", start, newImage.length(), 1);
+        publishMetrics(metrics);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.GlobPatternMapper;
+
+/**
+ * Base class for the tasks which process every file of nested filesets on a pool of threads. Errors are collected
+ * per file and reported once all the files have been processed.
+ */
+@Getter
+@Setter
+public abstract class BootImageBatchTask extends Task {
+
+    private final List<FileSet> filesets = new ArrayList<FileSet>();
+    /** pattern matched against the relative path of each file, the "*" part is used in output patterns */
+    private String from = "*";
+    /** base directory of output patterns, defaults to the project base directory */
+    private File destDir;
+    /** number of worker threads, defaults to the number of processors */
+    private int threads = Runtime.getRuntime().availableProcessors();
+    /** use one virtual thread per file when the JVM supports them */
+    private boolean virtualThreads;
+    private boolean failOnError = true;
+
+    public void addFileset(FileSet fileset) {
+        filesets.add(fileset);
+    }
+
+    /**
+     * Processes one file and returns the number of bytes written.
+     */
+    protected abstract long process(File baseDir, String relativePath) throws Exception;
+
+    protected File getOutputDir() {
+        return destDir != null ? destDir : getProject().getBaseDir();
+    }
+
+    /**
+     * Maps the relative path of a file through the from pattern and the given output pattern, or returns null if either
+     * the pattern is null or the path does not match.
+     */
+    protected File mapFile(File baseDir, String relativePath, String toPattern) {
+        if (toPattern == null) {
+            return null;
+        }
+        GlobPatternMapper mapper = new GlobPatternMapper();
+        mapper.setFrom(from);
+        mapper.setTo(toPattern);
+        String[] result = mapper.mapFileName(relativePath);
+        if (result == null) {
+            return null;
+        }
+        return new File(baseDir, result[0]);
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicLong totalBytes = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService executor = createExecutor();
+        try {
+            for (FileSet fileset : filesets) {
+                DirectoryScanner scanner = fileset.getDirectoryScanner(getProject());
+                final File baseDir = scanner.getBasedir();
+                for (final String relativePath : scanner.getIncludedFiles()) {
+                    count.incrementAndGet();
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                totalBytes.addAndGet(process(baseDir, relativePath));
+                            } catch (Exception e) {
+                                errors.add(String.format("%s: %s", new File(baseDir, relativePath), e));
+                            }
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        log(String.format("Processed %d boot images (%d failed) in %.3f s: %.1f images/s, %.1f MB/s", count.get(), errors.size(), seconds, count.get() / seconds, totalBytes.get() / seconds / (1024 * 1024)));
+        for (String error : errors) {
+            log(error, Project.MSG_ERR);
+        }
+        if (failOnError && !errors.isEmpty()) {
+            throw new BuildException(String.format("%d of %d boot images failed.", errors.size(), count.get()));
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                log("Virtual threads are not supported by this JVM, using platform threads.", Project.MSG_WARN);
+            }
+        }
+        if (threads <= 0) {
+            throw new BuildException(String.format("Unsupported value for threads (%d<=0).", threads));
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Check run by {@link BootImageScanner} on each image whose header could be read and which is not truncated. The same
+ * instance is used by all the threads of the scanner, so implementations must be thread-safe.
+ */
+public interface BootImageCheck {
+
+    /**
+     * Name of the check, as used in the report and in the checks attribute of scanBootImages.
+     */
+    String getName();
+
+    /**
+     * Adds to problems a message for each problem found in image. channel gives access to the whole file, including
+     * the bytes after the last section.
+     */
+    void check(MappedBootImage image, FileChannel channel, List<String> problems) throws IOException;
+}
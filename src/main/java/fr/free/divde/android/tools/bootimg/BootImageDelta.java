@@ -0,0 +1,312 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.delta.BlockMatcher;
+import fr.free.divde.android.tools.delta.DeltaOp;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.Cleanup;
+import lombok.Data;
+
+/**
+ * Section-aware delta between two boot or vendor_boot images. The new image is cut into regions which cover all of it:
+ * its header page, each of its sections with their padding and the bytes after the last section, if any. A region which is identical to a region of the old
+ * image is stored as a reference to it, other regions are stored as copies of blocks of the old region with the same
+ * name and literal bytes, found by {@link BlockMatcher}. Applying a delta reads it in one pass, copying the referenced
+ * bytes of the old image to the new one, and checks the SHA-1 of each region and of the whole new image.
+ * <p>
+ * File format (big endian): magic, version, size of the old image, SHA-1 of its header page, size of the new image,
+ * SHA-1 of the new image, number of regions, then for each region: name, position, length, SHA-1, number of operations, and the operations
+ * (0, length, bytes for literal bytes; 1, old position, length for a copy).
+ */
+public class BootImageDelta {
+
+    public static final int FILE_MAGIC = 0x42494446;
+    public static final int FILE_VERSION = 2;
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final String HEADER = "header";
+    public static final String TRAILER = "trailer";
+    private static final int LITERAL = 0;
+    private static final int COPY = 1;
+
+    /**
+     * Part of an image: the header page, a section with its padding or the trailer.
+     */
+    @Data
+    public static class Region {
+
+        private final String name;
+        private final long position;
+        private final int length;
+    }
+
+    /**
+     * Statistics of a delta: bytes of the new image copied from the old one, and literal bytes stored in the delta.
+     */
+    @Data
+    public static class Stats {
+
+        private long copiedBytes;
+        private long literalBytes;
+        private int unchangedRegions;
+        private int changedRegions;
+    }
+
+    /**
+     * Returns the regions of the image in the given channel.
+     */
+    public static List<Region> getRegions(FileChannel channel) throws IOException {
+        AbstractBootImageFile header = AbstractBootImageFile.readAny(channel);
+        List<Region> regions = new ArrayList<Region>();
+        regions.add(new Region(HEADER, 0, (int) header.getHeaderPageSize()));
+        for (BootImageSection section : header.getSections()) {
+            regions.add(new Region(section.getName(), section.getPosition(), (int) (section.getEnd() - section.getPosition())));
+        }
+        long trailer = channel.size() - header.getFileSize();
+        if (trailer > Integer.MAX_VALUE) {
+            throw new InvalidObjectException(String.format("Trailer is too large: %d bytes.", trailer));
+        }
+        if (trailer > 0) {
+            regions.add(new Region(TRAILER, header.getFileSize(), (int) trailer));
+        }
+        return regions;
+    }
+
+    /**
+     * Writes to delta the differences between oldImage and newImage, matching blocks of blockSize bytes on the given
+     * number of threads.
+     */
+    public static Stats create(File oldImage, File newImage, File delta, int blockSize, int threads) throws IOException, NoSuchAlgorithmException {
+        @Cleanup
+        RandomAccessFile oldAccess = new RandomAccessFile(oldImage, "r");
+        @Cleanup
+        RandomAccessFile newAccess = new RandomAccessFile(newImage, "r");
+        FileChannel oldChannel = oldAccess.getChannel();
+        FileChannel newChannel = newAccess.getChannel();
+        List<Region> oldRegions = getRegions(oldChannel);
+        List<Region> newRegions = getRegions(newChannel);
+        Map<String, Region> oldRegionsByName = new HashMap<String, Region>();
+        Map<String, Region> oldRegionsByHash = new HashMap<String, Region>();
+        for (Region region : oldRegions) {
+            oldRegionsByName.put(region.getName(), region);
+            oldRegionsByHash.put(region.getLength() + ":" + BinaryUtils.toHex(hash(oldChannel, region)), region);
+        }
+
+        Stats stats = new Stats();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        byte[] chunk = BinaryUtils.acquireArray();
+        try {
+            @Cleanup
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta)));
+            output.writeInt(FILE_MAGIC);
+            output.writeInt(FILE_VERSION);
+            output.writeLong(oldChannel.size());
+            output.write(hash(oldChannel, oldRegions.get(0)));
+            output.writeLong(newChannel.size());
+            output.write(hash(newChannel, getWholeImage(newChannel)));
+            output.writeInt(newRegions.size());
+            for (Region region : newRegions) {
+                byte[] regionHash = hash(newChannel, region);
+                output.writeUTF(region.getName());
+                output.writeLong(region.getPosition());
+                output.writeInt(region.getLength());
+                output.write(regionHash);
+                ByteBuffer newData = map(newChannel, region);
+                Region unchanged = oldRegionsByHash.get(region.getLength() + ":" + BinaryUtils.toHex(regionHash));
+                List<DeltaOp> ops;
+                if (region.getLength() == 0) {
+                    ops = Collections.emptyList();
+                } else if (unchanged != null) {
+                    ops = Collections.singletonList(new DeltaOp(true, 0, 0, region.getLength()));
+                    newData = null;
+                    oldRegionsByName.put(region.getName(), unchanged);
+                    stats.setUnchangedRegions(stats.getUnchangedRegions() + 1);
+                } else {
+                    Region oldRegion = oldRegionsByName.get(region.getName());
+                    if (oldRegion != null && oldRegion.getLength() >= blockSize) {
+                        BlockMatcher matcher = new BlockMatcher(map(oldChannel, oldRegion), blockSize);
+                        ops = matcher.match(newData, executor, threads);
+                    } else {
+                        ops = Collections.singletonList(new DeltaOp(false, 0, 0, region.getLength()));
+                    }
+                    stats.setChangedRegions(stats.getChangedRegions() + 1);
+                }
+                Region oldRegion = oldRegionsByName.get(region.getName());
+                writeOps(output, ops, oldRegion != null ? oldRegion.getPosition() : 0, newData, stats, chunk);
+            }
+        } finally {
+            BinaryUtils.release(chunk);
+            executor.shutdownNow();
+        }
+        return stats;
+    }
+
+    private static void writeOps(DataOutputStream output, List<DeltaOp> ops, long oldRegionPosition, ByteBuffer newData, Stats stats, byte[] chunk) throws IOException {
+        output.writeInt(ops.size());
+        for (DeltaOp op : ops) {
+            if (op.isCopy()) {
+                output.writeByte(COPY);
+                output.writeLong(oldRegionPosition + op.getOldPosition());
+                output.writeInt(op.getLength());
+                stats.setCopiedBytes(stats.getCopiedBytes() + op.getLength());
+                continue;
+            }
+            output.writeByte(LITERAL);
+            output.writeInt(op.getLength());
+            ByteBuffer literal = newData.duplicate();
+            literal.position((int) op.getNewPosition());
+            int remaining = op.getLength();
+            while (remaining > 0) {
+                int size = Math.min(remaining, chunk.length);
+                literal.get(chunk, 0, size);
+                output.write(chunk, 0, size);
+                remaining -= size;
+            }
+            stats.setLiteralBytes(stats.getLiteralBytes() + op.getLength());
+        }
+    }
+
+    /**
+     * Builds newImage from oldImage and delta. If verify is set, the SHA-1 of each region of the new image and the SHA-1
+     * of the whole new image, read back once it is written, are checked.
+     */
+    public static void apply(File oldImage, File delta, File newImage, boolean verify) throws IOException, NoSuchAlgorithmException {
+        @Cleanup
+        RandomAccessFile oldAccess = new RandomAccessFile(oldImage, "r");
+        FileChannel oldChannel = oldAccess.getChannel();
+        @Cleanup
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)));
+        if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION) {
+            throw new InvalidObjectException(String.format("Unsupported boot image delta: %s", delta));
+        }
+        long oldSize = input.readLong();
+        byte[] oldHeaderHash = readHash(input);
+        List<Region> oldRegions = getRegions(oldChannel);
+        if (oldChannel.size() != oldSize || !Arrays.equals(oldHeaderHash, hash(oldChannel, oldRegions.get(0)))) {
+            throw new InvalidObjectException(String.format("The delta does not apply to this image: %s", oldImage));
+        }
+        long newSize = input.readLong();
+        byte[] newImageHash = readHash(input);
+        @Cleanup
+        RandomAccessFile newAccess = BinaryUtils.createFile(newImage);
+        BinaryUtils.preallocate(newAccess, newSize);
+        FileChannel newChannel = newAccess.getChannel();
+        MessageDigest sha = verify ? BinaryUtils.acquireSha1() : null;
+        ByteBuffer chunk = ByteBuffer.wrap(BinaryUtils.acquireArray());
+        try {
+            applyRegions(input, oldChannel, newChannel, sha, chunk);
+        } finally {
+            BinaryUtils.release(chunk.array());
+            BinaryUtils.release(sha);
+        }
+        if (verify && !Arrays.equals(newImageHash, hash(newChannel, getWholeImage(newChannel)))) {
+            throw new InvalidObjectException(String.format("The new image does not match the delta: %s", newImage));
+        }
+        newAccess.close();
+    }
+
+    private static void applyRegions(DataInputStream input, FileChannel oldChannel, FileChannel newChannel, MessageDigest sha, ByteBuffer chunk) throws IOException {
+        int regionCount = input.readInt();
+        for (int i = 0; i < regionCount; i++) {
+            String name = input.readUTF();
+            long position = input.readLong();
+            int length = input.readInt();
+            byte[] regionHash = readHash(input);
+            int opCount = input.readInt();
+            for (int j = 0; j < opCount; j++) {
+                int type = input.readByte();
+                if (type == COPY) {
+                    long oldPosition = input.readLong();
+                    int size = input.readInt();
+                    BinaryUtils.copyBytes(oldChannel, oldPosition, newChannel, position, size, sha);
+                    position += size;
+                } else if (type == LITERAL) {
+                    int size = input.readInt();
+                    while (size > 0) {
+                        chunk.clear();
+                        chunk.limit(Math.min(size, chunk.capacity()));
+                        input.readFully(chunk.array(), 0, chunk.limit());
+                        if (sha != null) {
+                            sha.update(chunk.array(), 0, chunk.limit());
+                        }
+                        BinaryUtils.writeFully(newChannel, position, chunk);
+                        position += chunk.limit();
+                        size -= chunk.limit();
+                    }
+                } else {
+                    throw new InvalidObjectException(String.format("Unknown delta operation: %d", type));
+                }
+            }
+            if (sha != null && !Arrays.equals(regionHash, sha.digest())) {
+                throw new InvalidObjectException(String.format("The %s region of the new image does not match the delta (%d bytes).", name, length));
+            }
+        }
+    }
+
+    private static Region getWholeImage(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new InvalidObjectException(String.format("Image is too large: %d bytes.", size));
+        }
+        return new Region("image", 0, (int) size);
+    }
+
+    private static ByteBuffer map(FileChannel channel, Region region) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, region.getPosition(), region.getLength());
+    }
+
+    private static byte[] hash(FileChannel channel, Region region) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        try {
+            if (region.getLength() > 0) {
+                sha.update(map(channel, region));
+            }
+            return sha.digest();
+        } finally {
+            BinaryUtils.release(sha);
+        }
+    }
+
+    private static byte[] readHash(DataInputStream input) throws IOException {
+        byte[] hash = new byte[20];
+        input.readFully(hash);
+        return hash;
+    }
+}
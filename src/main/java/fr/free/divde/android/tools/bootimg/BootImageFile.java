@@ -20,24 +20,55 @@ package fr.free.divde.android.tools.bootimg;
 import fr.free.divde.android.tools.BinaryUtils;
 import java.io.IOException;
 import java.io.InvalidObjectException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NonNull;
 
+/**
+ * Header of a boot image, in version 0 (the original layout, followed by the kernel, ramdisk and second sections), 1
+ * (adds the recovery DTBO section), 2 (adds the DTB section), 3 (fixed 4096 bytes pages, only kernel and ramdisk) or
+ * 4 (adds the boot signature section).
+ */
 @Data
-public class BootImageFile {
+@EqualsAndHashCode(callSuper = false)
+public class BootImageFile extends AbstractBootImageFile {
 
     public static final String BOOT_MAGIC = "ANDROID!";
     public static final int BOOT_MAGIC_SIZE = BOOT_MAGIC.length();
     public static final int BOOT_NAME_SIZE = 16;
     public static final int BOOT_ARGS_SIZE = 512;
+    public static final int BOOT_EXTRA_ARGS_SIZE = 1024;
+    public static final int BOOT_ARGS_SIZE_V3 = BOOT_ARGS_SIZE + BOOT_EXTRA_ARGS_SIZE;
     public static final int HEADER_SIZE = BOOT_MAGIC_SIZE + BOOT_NAME_SIZE + BOOT_ARGS_SIZE + 10 * 4 + 32;
+    public static final int HEADER_SIZE_V1 = HEADER_SIZE + BOOT_EXTRA_ARGS_SIZE + 4 + 8 + 4;
+    public static final int HEADER_SIZE_V2 = HEADER_SIZE_V1 + 4 + 8;
+    public static final int HEADER_SIZE_V3 = BOOT_MAGIC_SIZE + 4 * 4 + 4 * 4 + 4 + BOOT_ARGS_SIZE_V3;
+    public static final int HEADER_SIZE_V4 = HEADER_SIZE_V3 + 4;
+    /** the header version is at the same place in all the versions */
+    public static final int HEADER_VERSION_OFFSET = BOOT_MAGIC_SIZE + 8 * 4;
+    private static final int PAGE_SIZE_OFFSET = BOOT_MAGIC_SIZE + 7 * 4;
+    private static final int HEADER_SIZE_OFFSET_V3 = BOOT_MAGIC_SIZE + 3 * 4;
+    public static final int MAX_HEADER_VERSION = 4;
     public static final int DEFAULT_PAGE_SIZE = 2048;
+    public static final int PAGE_SIZE_V3 = 4096;
     public static final int DEFAULT_BASE_ADDR = 0x10000000;
     public static final int OFFSET_KERNEL_ADDR = 0x00008000;
     public static final int OFFSET_RAMDISK_ADDR = 0x01000000;
     public static final int OFFSET_SECOND_ADDR = 0x00F00000;
     public static final int OFFSET_TAGS_ADDR = 0x00000100;
+    public static final int OFFSET_DTB_ADDR = 0x01F00000;
+    public static final String KERNEL = "kernel";
+    public static final String RAMDISK = "ramdisk";
+    public static final String SECOND = "second";
+    public static final String RECOVERY_DTBO = "recovery_dtbo";
+    public static final String DTB = "dtb";
+    public static final String SIGNATURE = "signature";
     private String magic = BOOT_MAGIC;
     /** size in bytes */
     private int kernelSize;
@@ -55,8 +86,15 @@ public class BootImageFile {
     private int tagsAddr = DEFAULT_BASE_ADDR + OFFSET_TAGS_ADDR;
     /** flash page size we assume */
     private int pageSize = DEFAULT_PAGE_SIZE;
-    /** future expansion: should be 0 */
-    private int[] unused = new int[2];
+    /** version of the header layout, 0 in the original images */
+    private int headerVersion;
+    /** operating system version and security patch level, 0 in the original images */
+    private int osVersion;
+    /**
+     * word read at the place of the header version in a version 0 image which uses it for something else (for example
+     * the DT size of Qualcomm images), written back unchanged
+     */
+    private int unusedVersionWord;
     /** asciiz product name */
     @NonNull
     private String name = "";
@@ -65,90 +103,313 @@ public class BootImageFile {
     private String args = "";
     /** timestamp / checksum / sha1 / etc */
     private byte[] id = new byte[32];
+    /** rest of the command line (version 1 and 2) */
+    @NonNull
+    private String extraArgs = "";
+    /** size in bytes (version 1 and 2) */
+    private int recoveryDtboSize;
+    /** size in bytes (version 2) */
+    private int dtbSize;
+    /** physical load addr (version 2) */
+    private long dtbAddr = DEFAULT_BASE_ADDR + OFFSET_DTB_ADDR;
+    /** size in bytes (version 4) */
+    private int signatureSize;
+
+    /**
+     * Sets the version of the header. Versions 3 and above always use 4096 bytes pages.
+     */
+    @Override
+    public void setHeaderVersion(int headerVersion) {
+        this.headerVersion = headerVersion;
+        if (headerVersion >= 3) {
+            pageSize = PAGE_SIZE_V3;
+        }
+    }
+
+    @Override
+    public int getHeaderSize() {
+        switch (headerVersion) {
+            case 1:
+                return HEADER_SIZE_V1;
+            case 2:
+                return HEADER_SIZE_V2;
+            case 3:
+                return HEADER_SIZE_V3;
+            case 4:
+                return HEADER_SIZE_V4;
+            default:
+                return HEADER_SIZE;
+        }
+    }
+
+    @Override
+    protected String[] getSectionNames() {
+        switch (headerVersion) {
+            case 1:
+                return new String[]{KERNEL, RAMDISK, SECOND, RECOVERY_DTBO};
+            case 2:
+                return new String[]{KERNEL, RAMDISK, SECOND, RECOVERY_DTBO, DTB};
+            case 3:
+                return new String[]{KERNEL, RAMDISK};
+            case 4:
+                return new String[]{KERNEL, RAMDISK, SIGNATURE};
+            default:
+                return new String[]{KERNEL, RAMDISK, SECOND};
+        }
+    }
+
+    @Override
+    protected int[] getSectionSizes() {
+        switch (headerVersion) {
+            case 1:
+                return new int[]{kernelSize, ramdiskSize, secondSize, recoveryDtboSize};
+            case 2:
+                return new int[]{kernelSize, ramdiskSize, secondSize, recoveryDtboSize, dtbSize};
+            case 3:
+                return new int[]{kernelSize, ramdiskSize};
+            case 4:
+                return new int[]{kernelSize, ramdiskSize, signatureSize};
+            default:
+                return new int[]{kernelSize, ramdiskSize, secondSize};
+        }
+    }
+
+    /**
+     * Sets the size of the section with the given name.
+     */
+    public void setSectionSize(String sectionName, int size) {
+        if (KERNEL.equals(sectionName)) {
+            kernelSize = size;
+        } else if (RAMDISK.equals(sectionName)) {
+            ramdiskSize = size;
+        } else if (SECOND.equals(sectionName)) {
+            secondSize = size;
+        } else if (RECOVERY_DTBO.equals(sectionName)) {
+            recoveryDtboSize = size;
+        } else if (DTB.equals(sectionName)) {
+            dtbSize = size;
+        } else if (SIGNATURE.equals(sectionName)) {
+            signatureSize = size;
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown section: %s", sectionName));
+        }
+    }
+
+    /**
+     * Returns true if the header has an id, which is the case before version 3.
+     */
+    public boolean hasId() {
+        return headerVersion < 3;
+    }
+
+    /**
+     * Returns true if the header has the name and the load addresses, which is the case before version 3.
+     */
+    public boolean hasNameAndAddresses() {
+        return headerVersion < 3;
+    }
+
+    /**
+     * Returns the version of the boot image header starting at the given position of a little endian buffer, which
+     * holds at least VERSION_PREFIX_SIZE bytes. Version 0 images may have any value in the word of the header version,
+     * so it is only taken as a version if it is a known one and the header size (version 3 and 4) or the page size
+     * (version 1 and 2) agrees with it. Otherwise the header is a version 0 header.
+     */
+    public static int readHeaderVersion(ByteBuffer header, int start) {
+        int version = header.getInt(start + HEADER_VERSION_OFFSET);
+        if (version == 3 || version == 4) {
+            int headerSize = header.getInt(start + HEADER_SIZE_OFFSET_V3);
+            return headerSize == (version == 3 ? HEADER_SIZE_V3 : HEADER_SIZE_V4) ? version : 0;
+        }
+        if (version == 1 || version == 2) {
+            int pageSize = header.getInt(start + PAGE_SIZE_OFFSET);
+            return Integer.bitCount(pageSize) == 1 && pageSize >= (version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE_V2) ? version : 0;
+        }
+        return 0;
+    }
+
+    @Override
+    public void decode(ByteBuffer header) {
+        int version = readHeaderVersion(header, header.position());
+        magic = BinaryUtils.readString(header, BOOT_MAGIC_SIZE);
+        kernelSize = header.getInt();
+        if (version >= 3) {
+            decodeV3(header);
+            return;
+        }
+        kernelAddr = header.getInt();
+        ramdiskSize = header.getInt();
+        ramdiskAddr = header.getInt();
+        secondSize = header.getInt();
+        secondAddr = header.getInt();
+        tagsAddr = header.getInt();
+        pageSize = header.getInt();
+        int versionWord = header.getInt();
+        headerVersion = version;
+        unusedVersionWord = version == 0 ? versionWord : 0;
+        osVersion = header.getInt();
+        name = BinaryUtils.readString(header, BOOT_NAME_SIZE);
+        args = BinaryUtils.readString(header, BOOT_ARGS_SIZE);
+        header.get(id);
+        if (headerVersion >= 1) {
+            extraArgs = BinaryUtils.readString(header, BOOT_EXTRA_ARGS_SIZE);
+            recoveryDtboSize = header.getInt();
+            // recovery DTBO offset and header size, computed from the layout
+            header.getLong();
+            header.getInt();
+        }
+        if (headerVersion >= 2) {
+            dtbSize = header.getInt();
+            dtbAddr = header.getLong();
+        }
+    }
 
-    public void read(RandomAccessFile file) throws IOException {
-        file.seek(0);
-        magic = BinaryUtils.readString(file, BOOT_MAGIC_SIZE);
-        kernelSize = BinaryUtils.readIntLittleEndian(file);
-        kernelAddr = BinaryUtils.readIntLittleEndian(file);
-        ramdiskSize = BinaryUtils.readIntLittleEndian(file);
-        ramdiskAddr = BinaryUtils.readIntLittleEndian(file);
-        secondSize = BinaryUtils.readIntLittleEndian(file);
-        secondAddr = BinaryUtils.readIntLittleEndian(file);
-        tagsAddr = BinaryUtils.readIntLittleEndian(file);
-        pageSize = BinaryUtils.readIntLittleEndian(file);
-        unused[0] = BinaryUtils.readIntLittleEndian(file);
-        unused[1] = BinaryUtils.readIntLittleEndian(file);
-        name = BinaryUtils.readString(file, BOOT_NAME_SIZE);
-        args = BinaryUtils.readString(file, BOOT_ARGS_SIZE);
-        for (int i = 0; i < 32; i++) {
-            id[i] = file.readByte();
-        }
-        check();
-        assert (file.getFilePointer() == HEADER_SIZE);
-        file.seek(getKernelPosition());
-        long longFileSize = file.length();
-        if (longFileSize > Integer.MAX_VALUE) {
-            throw new InvalidObjectException(String.format("File is too large: %d bytes.", longFileSize));
-        }
-        int fileSize = (int) longFileSize;
-        int expectedFileSize = getFileSize();
-        if (fileSize < getFileSize()) {
-            throw new InvalidObjectException(String.format("File size is smaller than expected. Expected %d bytes, found %d bytes.", expectedFileSize, fileSize));
-        }
-    }
-
-    private void check() throws IOException {
+    private void decodeV3(ByteBuffer header) {
+        ramdiskSize = header.getInt();
+        osVersion = header.getInt();
+        // header size, computed from the version, and reserved fields
+        header.position(header.position() + 5 * 4);
+        setHeaderVersion(header.getInt());
+        args = BinaryUtils.readString(header, BOOT_ARGS_SIZE_V3);
+        if (headerVersion >= 4) {
+            signatureSize = header.getInt();
+        }
+    }
+
+    @Override
+    public void check() throws IOException {
         if (!BOOT_MAGIC.equals(magic)) {
             throw new InvalidObjectException(String.format("Invalid boot magic. Expected '%s', found '%s'.", BOOT_MAGIC, magic));
         }
-        if (kernelSize <= 0 || ramdiskSize <= 0 || secondSize < 0 || pageSize < HEADER_SIZE) {
-            throw new InvalidObjectException(String.format("Unsupported value for kernelSize (%d<=0), ramdiskSize (%d<=0), secondSize (%d<0) or pageSize (%d<%d).", kernelSize, ramdiskSize, secondSize, pageSize, HEADER_SIZE));
+        if (headerVersion < 0 || headerVersion > MAX_HEADER_VERSION) {
+            throw new InvalidObjectException(String.format("Unsupported header version: %d.", headerVersion));
+        }
+        if (headerVersion >= 3) {
+            if (kernelSize <= 0 || ramdiskSize < 0 || signatureSize < 0 || pageSize != PAGE_SIZE_V3) {
+                throw new InvalidObjectException(String.format("Unsupported value for kernelSize (%d<=0), ramdiskSize (%d<0), signatureSize (%d<0) or pageSize (%d!=%d).", kernelSize, ramdiskSize, signatureSize, pageSize, PAGE_SIZE_V3));
+            }
+            return;
+        }
+        if (kernelSize <= 0 || ramdiskSize <= 0 || secondSize < 0 || pageSize < getHeaderSize()) {
+            throw new InvalidObjectException(String.format("Unsupported value for kernelSize (%d<=0), ramdiskSize (%d<=0), secondSize (%d<0) or pageSize (%d<%d).", kernelSize, ramdiskSize, secondSize, pageSize, getHeaderSize()));
+        }
+        if (recoveryDtboSize < 0 || dtbSize < 0) {
+            throw new InvalidObjectException(String.format("Unsupported value for recoveryDtboSize (%d<0) or dtbSize (%d<0).", recoveryDtboSize, dtbSize));
         }
     }
 
-    public void write(RandomAccessFile file) throws IOException {
-        check();
-        file.seek(0);
-        BinaryUtils.writeString(file, BOOT_MAGIC_SIZE, magic);
-        BinaryUtils.writeIntLittleEndian(file, kernelSize);
-        BinaryUtils.writeIntLittleEndian(file, kernelAddr);
-        BinaryUtils.writeIntLittleEndian(file, ramdiskSize);
-        BinaryUtils.writeIntLittleEndian(file, ramdiskAddr);
-        BinaryUtils.writeIntLittleEndian(file, secondSize);
-        BinaryUtils.writeIntLittleEndian(file, secondAddr);
-        BinaryUtils.writeIntLittleEndian(file, tagsAddr);
-        BinaryUtils.writeIntLittleEndian(file, pageSize);
-        BinaryUtils.writeIntLittleEndian(file, unused[0]);
-        BinaryUtils.writeIntLittleEndian(file, unused[1]);
-        BinaryUtils.writeString(file, BOOT_NAME_SIZE, name);
-        BinaryUtils.writeString(file, BOOT_ARGS_SIZE, args);
-        for (int i = 0; i < 32; i++) {
-            file.write(id[i]);
+    /**
+     * Rewrites the header page of the image in the given channel with this header, without touching the sections.
+     * imageSections are the sections of the image, as decoded from its header before it was changed: the version of
+     * the header, the sizes of the sections and the page size must give the same sections, so that they stay where
+     * they are.
+     */
+    public void patch(FileChannel channel, List<BootImageSection> imageSections) throws IOException {
+        if (!imageSections.equals(getSections())) {
+            throw new InvalidObjectException(String.format("The layout of the image cannot be patched. Expected sections %s.", imageSections));
         }
-        int curPos = (int) file.getFilePointer();
-        assert (curPos == HEADER_SIZE);
-        BinaryUtils.fillPadding(file, getKernelPosition() - curPos);
+        write(channel);
     }
 
-    public int getKernelPosition() {
-        return pageSize;
+    /**
+     * Computes the id of the image in the given channel from its sections, in the same way as makeBootImage: the SHA-1
+     * of each section followed by its size as a little endian integer. The sections are mapped, not copied. Headers
+     * from version 3 have no id, and are not changed.
+     */
+    public void computeId(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+        if (!hasId()) {
+            return;
+        }
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        try {
+            for (BootImageSection section : getSections()) {
+                hashSection(sha, channel, section);
+                BinaryUtils.writeIntLittleEndian(sha, section.getSize());
+            }
+            byte[] out = sha.digest();
+            Arrays.fill(id, (byte) 0);
+            System.arraycopy(out, 0, id, 0, out.length);
+        } finally {
+            BinaryUtils.release(sha);
+        }
     }
 
-    public int computePadding(int size) {
-        int lastPageBytes = (size % pageSize);
-        if (lastPageBytes == 0) {
-            return 0;
-        } else {
-            return pageSize - lastPageBytes;
+    /**
+     * Feeds the digest with the bytes of the given section of the image in the channel, through a read-only mapping.
+     */
+    public static void hashSection(MessageDigest sha, FileChannel channel, BootImageSection section) throws IOException {
+        if (section.getSize() > 0) {
+            sha.update(channel.map(FileChannel.MapMode.READ_ONLY, section.getPosition(), section.getSize()));
+        }
+    }
+
+    /**
+     * Returns true if the given SHA-1 digest of the sections is the id of this header.
+     */
+    public boolean matchesId(byte[] digest) {
+        for (int i = 0; i < digest.length; i++) {
+            if (id[i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void encode(ByteBuffer header) {
+        BinaryUtils.writeString(header, BOOT_MAGIC_SIZE, magic);
+        header.putInt(kernelSize);
+        if (headerVersion >= 3) {
+            encodeV3(header);
+            return;
+        }
+        header.putInt(kernelAddr);
+        header.putInt(ramdiskSize);
+        header.putInt(ramdiskAddr);
+        header.putInt(secondSize);
+        header.putInt(secondAddr);
+        header.putInt(tagsAddr);
+        header.putInt(pageSize);
+        header.putInt(headerVersion == 0 ? unusedVersionWord : headerVersion);
+        header.putInt(osVersion);
+        BinaryUtils.writeString(header, BOOT_NAME_SIZE, name);
+        BinaryUtils.writeString(header, BOOT_ARGS_SIZE, args);
+        header.put(id, 0, 32);
+        if (headerVersion >= 1) {
+            BinaryUtils.writeString(header, BOOT_EXTRA_ARGS_SIZE, extraArgs);
+            header.putInt(recoveryDtboSize);
+            header.putLong(recoveryDtboSize > 0 ? getSection(RECOVERY_DTBO).getPosition() : 0);
+            header.putInt(getHeaderSize());
+        }
+        if (headerVersion >= 2) {
+            header.putInt(dtbSize);
+            header.putLong(dtbAddr);
+        }
+    }
+
+    private void encodeV3(ByteBuffer header) {
+        header.putInt(ramdiskSize);
+        header.putInt(osVersion);
+        header.putInt(getHeaderSize());
+        for (int i = 0; i < 4; i++) {
+            header.putInt(0);
+        }
+        header.putInt(headerVersion);
+        BinaryUtils.writeString(header, BOOT_ARGS_SIZE_V3, args);
+        if (headerVersion >= 4) {
+            header.putInt(signatureSize);
         }
     }
 
+    public long getKernelPosition() {
+        return getHeaderPageSize();
+    }
+
     public int getKernelPadding() {
         return computePadding(getKernelSize());
     }
 
-    public int getRamdiskPosition() {
+    public long getRamdiskPosition() {
         return getKernelPosition() + getKernelSize() + getKernelPadding();
     }
 
@@ -156,7 +417,10 @@ public class BootImageFile {
         return computePadding(getRamdiskSize());
     }
 
-    public int getSecondPosition() {
+    /**
+     * Returns the position of the second section, or the end of the ramdisk if this version has no second section.
+     */
+    public long getSecondPosition() {
         return getRamdiskPosition() + getRamdiskSize() + getRamdiskPadding();
     }
 
@@ -164,15 +428,12 @@ public class BootImageFile {
         return computePadding(getSecondSize());
     }
 
-    public int getFileSize() {
-        return getSecondPosition() + getSecondSize() + getSecondPadding();
-    }
-
     public void setBaseAddr(int base) {
         setKernelAddr(base + OFFSET_KERNEL_ADDR);
         setRamdiskAddr(base + OFFSET_RAMDISK_ADDR);
         setSecondAddr(base + OFFSET_SECOND_ADDR);
         setTagsAddr(base + OFFSET_TAGS_ADDR);
+        setDtbAddr((base & 0xFFFFFFFFL) + OFFSET_DTB_ADDR);
     }
 
     public int getBaseAddr() {
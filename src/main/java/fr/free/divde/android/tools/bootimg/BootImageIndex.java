@@ -0,0 +1,331 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import lombok.Cleanup;
+import lombok.Data;
+
+/**
+ * Index of the headers of many boot images, kept in a compact binary file so that the images can be queried without
+ * reading them again. Entries are keyed by the absolute path of the image, and an entry is only refreshed when the size
+ * or the modification time of its image changed.
+ */
+public class BootImageIndex {
+
+    private static final int FILE_MAGIC = 0x42494458;
+    private static final int FILE_VERSION = 1;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    @Data
+    public static class Entry {
+
+        private String path;
+        private long modified;
+        private long length;
+        private BootImageFile header;
+    }
+
+    /**
+     * Criteria used to select entries. Null criteria match any value.
+     */
+    @Data
+    public static class Query {
+
+        private Integer baseAddr;
+        private Integer pageSize;
+        private Integer kernelSize;
+        private Integer ramdiskSize;
+        private Integer secondSize;
+        private String name;
+        /** fragment of the command line */
+        private String args;
+
+        public boolean matches(Entry entry) {
+            BootImageFile header = entry.getHeader();
+            return (baseAddr == null || baseAddr == header.getBaseAddr())
+                    && (pageSize == null || pageSize == header.getPageSize())
+                    && (kernelSize == null || kernelSize == header.getKernelSize())
+                    && (ramdiskSize == null || ramdiskSize == header.getRamdiskSize())
+                    && (secondSize == null || secondSize == header.getSecondSize())
+                    && (name == null || name.equals(header.getName()))
+                    && (args == null || header.getArgs().contains(args));
+        }
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    public List<Entry> query(Query query) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (query.matches(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if the index has an entry for the given image with the same size and modification time.
+     */
+    public boolean isUpToDate(File image) {
+        Entry entry = entries.get(image.getAbsolutePath());
+        return entry != null && entry.getModified() == image.lastModified() && entry.getLength() == image.length();
+    }
+
+    /**
+     * Reads the header of the given image and stores it in the index, unless the index is already up to date.
+     * Returns true if the header was read.
+     */
+    public boolean update(File image) throws IOException {
+        if (isUpToDate(image)) {
+            return false;
+        }
+        Entry entry = new Entry();
+        entry.setPath(image.getAbsolutePath());
+        entry.setModified(image.lastModified());
+        entry.setLength(image.length());
+        @Cleanup
+        RandomAccessFile access = new RandomAccessFile(image, "r");
+        BootImageFile header = new BootImageFile();
+        header.read(access.getChannel());
+        entry.setHeader(header);
+        entries.put(entry.getPath(), entry);
+        return true;
+    }
+
+    /**
+     * Removes the entry of the given image, if any.
+     */
+    public void remove(File image) {
+        entries.remove(image.getAbsolutePath());
+    }
+
+    /**
+     * Removes the entries whose path is not in the given collection.
+     */
+    public void retain(Collection<String> paths) {
+        entries.keySet().retainAll(paths);
+    }
+
+    /**
+     * Updates the index with every image found under directory, reading the headers on the given number of threads,
+     * and removes the entries of images which are no longer there. Files which are not boot images are ignored.
+     */
+    public void updateDirectory(File directory, int threads) throws IOException {
+        List<File> files = new ArrayList<File>();
+        listFiles(directory, files);
+        List<String> paths = new ArrayList<String>(files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File file : files) {
+                paths.add(file.getAbsolutePath());
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            update(file);
+                        } catch (IOException e) {
+                            remove(file);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while indexing boot images.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        retain(paths);
+    }
+
+    static void listFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                listFiles(child, files);
+            } else if (child.isFile()) {
+                files.add(child);
+            }
+        }
+    }
+
+    public void load(File file) throws IOException {
+        entries.clear();
+        if (!file.isFile()) {
+            return;
+        }
+        @Cleanup
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int magic = input.readInt();
+        int version = input.readInt();
+        if (magic != FILE_MAGIC || version != FILE_VERSION) {
+            throw new InvalidObjectException(String.format("Unsupported boot image index: %s", file));
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry();
+            entry.setPath(input.readUTF());
+            entry.setModified(input.readLong());
+            entry.setLength(input.readLong());
+            BootImageFile header = new BootImageFile();
+            header.setKernelSize(input.readInt());
+            header.setKernelAddr(input.readInt());
+            header.setRamdiskSize(input.readInt());
+            header.setRamdiskAddr(input.readInt());
+            header.setSecondSize(input.readInt());
+            header.setSecondAddr(input.readInt());
+            header.setTagsAddr(input.readInt());
+            header.setPageSize(input.readInt());
+            header.setHeaderVersion(input.readInt());
+            header.setOsVersion(input.readInt());
+            header.setName(input.readUTF());
+            header.setArgs(input.readUTF());
+            input.readFully(header.getId());
+            entry.setHeader(header);
+            entries.put(entry.getPath(), entry);
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file next to file, then renames it atomically, so that an interrupted update
+     * leaves the previous index intact.
+     */
+    public void save(File file) throws IOException {
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            @Cleanup
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            write(output);
+            output.close();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private void write(DataOutputStream output) throws IOException {
+        output.writeInt(FILE_MAGIC);
+        output.writeInt(FILE_VERSION);
+        List<Entry> values = new ArrayList<Entry>(entries.values());
+        output.writeInt(values.size());
+        for (Entry entry : values) {
+            BootImageFile header = entry.getHeader();
+            output.writeUTF(entry.getPath());
+            output.writeLong(entry.getModified());
+            output.writeLong(entry.getLength());
+            output.writeInt(header.getKernelSize());
+            output.writeInt(header.getKernelAddr());
+            output.writeInt(header.getRamdiskSize());
+            output.writeInt(header.getRamdiskAddr());
+            output.writeInt(header.getSecondSize());
+            output.writeInt(header.getSecondAddr());
+            output.writeInt(header.getTagsAddr());
+            output.writeInt(header.getPageSize());
+            output.writeInt(header.getHeaderVersion());
+            output.writeInt(header.getOsVersion());
+            output.writeUTF(header.getName());
+            output.writeUTF(header.getArgs());
+            output.write(header.getId());
+        }
+    }
+
+    /**
+     * Command line entry point:
+     * <pre>
+     * BootImageIndex update indexFile directory [threads]
+     * BootImageIndex query indexFile [baseAddr=..] [pageSize=..] [kernelSize=..] [ramdiskSize=..] [secondSize=..] [name=..] [args=..]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !("update".equals(args[0]) || "query".equals(args[0]))) {
+            System.err.println("Usage: BootImageIndex update indexFile directory [threads]");
+            System.err.println("       BootImageIndex query indexFile [baseAddr=..] [pageSize=..] [kernelSize=..] [ramdiskSize=..] [secondSize=..] [name=..] [args=..]");
+            System.exit(2);
+        }
+        File indexFile = new File(args[1]);
+        BootImageIndex index = new BootImageIndex();
+        index.load(indexFile);
+        if ("update".equals(args[0])) {
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            index.updateDirectory(new File(args[2]), threads);
+            index.save(indexFile);
+            System.out.println(String.format("%d boot images indexed.", index.getEntries().size()));
+        } else {
+            Query query = new Query();
+            for (int i = 2; i < args.length; i++) {
+                int separator = args[i].indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException(String.format("Invalid criterion: '%s'", args[i]));
+                }
+                setCriterion(query, args[i].substring(0, separator), args[i].substring(separator + 1));
+            }
+            for (Entry entry : index.query(query)) {
+                System.out.println(entry.getPath());
+            }
+        }
+    }
+
+    private static void setCriterion(Query query, String key, String value) {
+        if ("baseAddr".equals(key)) {
+            query.setBaseAddr(Integer.decode(value));
+        } else if ("pageSize".equals(key)) {
+            query.setPageSize(Integer.decode(value));
+        } else if ("kernelSize".equals(key)) {
+            query.setKernelSize(Integer.decode(value));
+        } else if ("ramdiskSize".equals(key)) {
+            query.setRamdiskSize(Integer.decode(value));
+        } else if ("secondSize".equals(key)) {
+            query.setSecondSize(Integer.decode(value));
+        } else if ("name".equals(key)) {
+            query.setName(value);
+        } else if ("args".equals(key)) {
+            query.setArgs(value);
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown criterion: '%s'", key));
+        }
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import lombok.Cleanup;
+import lombok.Data;
+
+/**
+ * Validates boot and vendor_boot images. The header is decoded and the size of the file is compared with the layout it
+ * describes (problems are then reported by the header check), then the sections are mapped and a set of {@link BootImageCheck}s is run on them. The built-in checks are:
+ * <ul>
+ * <li>pageSize: the page size is a power of two, at least 2048;</li>
+ * <li>loadAddresses: the sections loaded in memory do not overlap each other or the kernel tags;</li>
+ * <li>trailingData: the bytes after the last section are zero or end with an AVB footer;</li>
+ * <li>ramdisk: the ramdisks are in a known format, and gzip ramdisks decompress to a cpio archive;</li>
+ * <li>id: the SHA-1 of the sections matches the id of the header, when it has one.</li>
+ * </ul>
+ */
+public class BootImageScanner {
+
+    public static final String HEADER = "header";
+    public static final String READ = "read";
+    private static final int MIN_PAGE_SIZE = 2048;
+    private static final int AVB_FOOTER_SIZE = 64;
+    private static final byte[] AVB_FOOTER_MAGIC = {'A', 'V', 'B', 'f'};
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private final Map<String, BootImageCheck> checks = new LinkedHashMap<String, BootImageCheck>();
+
+    /**
+     * Problem found by a check.
+     */
+    @Data
+    public static class Problem {
+
+        private final String check;
+        private final String message;
+    }
+
+    /**
+     * Result of the scan of an image.
+     */
+    @Data
+    public static class Result {
+
+        private final String path;
+        private long size;
+        /** boot or vendor_boot, null if the header could not be read */
+        private String type;
+        private int headerVersion;
+        private final List<Problem> problems = new ArrayList<Problem>();
+
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"path\":").append(TaskMetrics.quote(path));
+            json.append(",\"size\":").append(size);
+            json.append(",\"type\":").append(TaskMetrics.quote(type));
+            json.append(",\"headerVersion\":").append(headerVersion);
+            json.append(",\"valid\":").append(isValid());
+            json.append(",\"problems\":[");
+            boolean first = true;
+            for (Problem problem : problems) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append("{\"check\":").append(TaskMetrics.quote(problem.getCheck()));
+                json.append(",\"message\":").append(TaskMetrics.quote(problem.getMessage()));
+                json.append('}');
+            }
+            json.append("]}");
+            return json.toString();
+        }
+    }
+
+    /**
+     * Creates a scanner running all the built-in checks.
+     */
+    public BootImageScanner() {
+        addCheck(new PageSizeCheck());
+        addCheck(new LoadAddressesCheck());
+        addCheck(new TrailingDataCheck());
+        addCheck(new RamdiskCheck());
+        addCheck(new IdCheck());
+    }
+
+    public void addCheck(BootImageCheck check) {
+        checks.put(check.getName(), check);
+    }
+
+    /**
+     * Only keeps the checks with the given names.
+     */
+    public void retainChecks(Collection<String> names) {
+        for (String name : names) {
+            if (!checks.containsKey(name)) {
+                throw new IllegalArgumentException(String.format("Unknown check: %s (available checks: %s)", name, checks.keySet()));
+            }
+        }
+        checks.keySet().retainAll(names);
+    }
+
+    public Collection<String> getCheckNames() {
+        return Collections.unmodifiableCollection(checks.keySet());
+    }
+
+    /**
+     * Scans the given file. Problems are reported in the result; an exception thrown by a check is reported as a
+     * problem of that check.
+     */
+    public Result scan(File file) throws IOException {
+        Result result = new Result(file.getPath());
+        @Cleanup
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        FileChannel channel = access.getChannel();
+        result.setSize(channel.size());
+        AbstractBootImageFile header;
+        try {
+            header = AbstractBootImageFile.readAny(channel);
+        } catch (IOException e) {
+            result.getProblems().add(new Problem(HEADER, String.valueOf(e.getMessage())));
+            return result;
+        }
+        result.setType(header instanceof VendorBootImageFile ? "vendor_boot" : "boot");
+        result.setHeaderVersion(header.getHeaderVersion());
+        MappedBootImage image = MappedBootImage.map(channel);
+        List<String> messages = new ArrayList<String>();
+        for (BootImageCheck check : checks.values()) {
+            messages.clear();
+            try {
+                check.check(image, channel, messages);
+            } catch (Exception e) {
+                messages.add(String.valueOf(e));
+            }
+            for (String message : messages) {
+                result.getProblems().add(new Problem(check.getName(), message));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Opens a report, to which the results are appended as JSON objects, one per line.
+     */
+    public static Writer openReport(File report) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(report), UTF_8));
+    }
+
+    /**
+     * Appends a result to a report opened by {@link #openReport}. Results can be appended from several threads.
+     */
+    public static void writeResult(Writer report, Result result) throws IOException {
+        String json = result.toJson();
+        synchronized (report) {
+            report.write(json);
+            report.write('\n');
+        }
+    }
+
+    private static class PageSizeCheck implements BootImageCheck {
+
+        @Override
+        public String getName() {
+            return "pageSize";
+        }
+
+        @Override
+        public void check(MappedBootImage image, FileChannel channel, List<String> problems) {
+            int pageSize = image.getHeader().getPageSize();
+            if (pageSize < MIN_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+                problems.add(String.format("The page size is not a power of two of at least %d bytes: %d.", MIN_PAGE_SIZE, pageSize));
+            }
+        }
+    }
+
+    private static class LoadAddressesCheck implements BootImageCheck {
+
+        @Override
+        public String getName() {
+            return "loadAddresses";
+        }
+
+        @Override
+        public void check(MappedBootImage image, FileChannel channel, List<String> problems) {
+            Map<String, long[]> ranges = new LinkedHashMap<String, long[]>();
+            long tagsAddr;
+            AbstractBootImageFile header = image.getHeader();
+            if (header instanceof BootImageFile) {
+                BootImageFile bootImageHeader = (BootImageFile) header;
+                if (bootImageHeader.getHeaderVersion() >= 3) {
+                    // load addresses are not part of the header
+                    return;
+                }
+                addRange(ranges, BootImageFile.KERNEL, bootImageHeader.getKernelAddr(), bootImageHeader.getKernelSize());
+                addRange(ranges, BootImageFile.RAMDISK, bootImageHeader.getRamdiskAddr(), bootImageHeader.getRamdiskSize());
+                addRange(ranges, BootImageFile.SECOND, bootImageHeader.getSecondAddr(), bootImageHeader.getSecondSize());
+                if (bootImageHeader.getHeaderVersion() >= 2) {
+                    addRange(ranges, BootImageFile.DTB, bootImageHeader.getDtbAddr(), bootImageHeader.getDtbSize());
+                }
+                tagsAddr = bootImageHeader.getTagsAddr() & 0xFFFFFFFFL;
+            } else {
+                VendorBootImageFile vendorHeader = (VendorBootImageFile) header;
+                addRange(ranges, VendorBootImageFile.VENDOR_RAMDISK, vendorHeader.getRamdiskAddr(), vendorHeader.getVendorRamdiskSize());
+                addRange(ranges, VendorBootImageFile.DTB, vendorHeader.getDtbAddr(), vendorHeader.getDtbSize());
+                tagsAddr = vendorHeader.getTagsAddr() & 0xFFFFFFFFL;
+            }
+            List<String> names = new ArrayList<String>(ranges.keySet());
+            for (int i = 0; i < names.size(); i++) {
+                long[] first = ranges.get(names.get(i));
+                for (int j = i + 1; j < names.size(); j++) {
+                    long[] second = ranges.get(names.get(j));
+                    if (first[0] < second[1] && second[0] < first[1]) {
+                        problems.add(String.format("The %s (0x%08X-0x%08X) and %s (0x%08X-0x%08X) load addresses overlap.", names.get(i), first[0], first[1], names.get(j), second[0], second[1]));
+                    }
+                }
+                if (first[0] <= tagsAddr && tagsAddr < first[1]) {
+                    problems.add(String.format("The tags address (0x%08X) is inside the %s (0x%08X-0x%08X).", tagsAddr, names.get(i), first[0], first[1]));
+                }
+            }
+        }
+
+        private static void addRange(Map<String, long[]> ranges, String name, int addr, int size) {
+            addRange(ranges, name, addr & 0xFFFFFFFFL, size);
+        }
+
+        private static void addRange(Map<String, long[]> ranges, String name, long addr, int size) {
+            if (size > 0) {
+                ranges.put(name, new long[]{addr, addr + size});
+            }
+        }
+    }
+
+    private static class TrailingDataCheck implements BootImageCheck {
+
+        @Override
+        public String getName() {
+            return "trailingData";
+        }
+
+        @Override
+        public void check(MappedBootImage image, FileChannel channel, List<String> problems) throws IOException {
+            long start = image.getHeader().getFileSize();
+            long end = channel.size();
+            if (end - start >= AVB_FOOTER_SIZE) {
+                ByteBuffer magic = ByteBuffer.allocate(AVB_FOOTER_MAGIC.length);
+                BinaryUtils.readFully(channel, end - AVB_FOOTER_SIZE, magic);
+                if (ByteBuffer.wrap(AVB_FOOTER_MAGIC).equals(magic.flip())) {
+                    // the space before the footer holds the vbmeta structure
+                    return;
+                }
+            }
+            ByteBuffer chunk = BinaryUtils.acquireBuffer();
+            try {
+                long position = start;
+                while (position < end) {
+                    chunk.clear();
+                    if (chunk.capacity() > end - position) {
+                        chunk.limit((int) (end - position));
+                    }
+                    BinaryUtils.readFully(channel, position, chunk);
+                    chunk.flip();
+                    while (chunk.hasRemaining()) {
+                        if (chunk.get() != 0) {
+                            problems.add(String.format("%d bytes after the last section are not zero, from offset %d.", end - start, position + chunk.position() - 1));
+                            return;
+                        }
+                    }
+                    position += chunk.limit();
+                }
+            } finally {
+                BinaryUtils.release(chunk);
+            }
+        }
+    }
+
+    private static class RamdiskCheck implements BootImageCheck {
+
+        @Override
+        public String getName() {
+            return "ramdisk";
+        }
+
+        @Override
+        public void check(MappedBootImage image, FileChannel channel, List<String> problems) throws IOException {
+            AbstractBootImageFile header = image.getHeader();
+            if (header instanceof BootImageFile) {
+                checkRamdisk(BootImageFile.RAMDISK, image.getRamdisk(), problems);
+                return;
+            }
+            ByteBuffer vendorRamdisk = image.getSection(VendorBootImageFile.VENDOR_RAMDISK);
+            for (VendorBootImageFile.VendorRamdiskEntry entry : ((VendorBootImageFile) header).readVendorRamdiskTable(channel)) {
+                ByteBuffer ramdisk = vendorRamdisk.duplicate();
+                ramdisk.position(entry.getOffset());
+                ramdisk.limit(entry.getOffset() + entry.getSize());
+                checkRamdisk(String.format("vendor ramdisk '%s'", entry.getName()), ramdisk.slice(), problems);
+            }
+        }
+
+        private static void checkRamdisk(String name, ByteBuffer ramdisk, List<String> problems) throws IOException {
+            if (!ramdisk.hasRemaining()) {
+                return;
+            }
+            if (startsWith(ramdisk, 0x1F, 0x8B)) {
+                checkGzip(name, ramdisk, problems);
+            } else if (!(startsWith(ramdisk, '0', '7', '0', '7', '0') // cpio
+                    || startsWith(ramdisk, 0x02, 0x21, 0x4C, 0x18) // lz4 legacy
+                    || startsWith(ramdisk, 0x04, 0x22, 0x4D, 0x18) // lz4 frame
+                    || startsWith(ramdisk, 0xFD, '7', 'z', 'X', 'Z', 0x00) // xz
+                    || startsWith(ramdisk, 0x5D, 0x00, 0x00) // lzma
+                    || startsWith(ramdisk, 0x28, 0xB5, 0x2F, 0xFD) // zstd
+                    || startsWith(ramdisk, 'B', 'Z', 'h'))) {
+                problems.add(String.format("The %s is in an unknown format.", name));
+            }
+        }
+
+        private static void checkGzip(String name, ByteBuffer ramdisk, List<String> problems) {
+            byte[] chunk = BinaryUtils.acquireArray();
+            try {
+                @Cleanup
+                InputStream input = new GZIPInputStream(BinaryUtils.newInputStream(ramdisk));
+                int start = 0;
+                int sizeRead;
+                while (start < 6 && (sizeRead = input.read(chunk, start, 6 - start)) != -1) {
+                    start += sizeRead;
+                }
+                if (start < 6 || !new String(chunk, 0, 5, "US-ASCII").equals("07070")) {
+                    problems.add(String.format("The %s is not a gzip compressed cpio archive.", name));
+                    return;
+                }
+                while (input.read(chunk) != -1) {
+                    // the whole stream is read to check its CRC
+                }
+            } catch (IOException e) {
+                problems.add(String.format("The %s is not a valid gzip stream: %s", name, e.getMessage()));
+            } finally {
+                BinaryUtils.release(chunk);
+            }
+        }
+
+        private static boolean startsWith(ByteBuffer buffer, int... bytes) {
+            if (buffer.remaining() < bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if ((buffer.get(buffer.position() + i) & 0xFF) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class IdCheck implements BootImageCheck {
+
+        @Override
+        public String getName() {
+            return "id";
+        }
+
+        @Override
+        public void check(MappedBootImage image, FileChannel channel, List<String> problems) throws IOException {
+            if (!(image.getHeader() instanceof BootImageFile)) {
+                return;
+            }
+            BootImageFile header = (BootImageFile) image.getHeader();
+            if (!header.hasId()) {
+                return;
+            }
+            MessageDigest sha;
+            try {
+                sha = BinaryUtils.acquireSha1();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            try {
+                for (BootImageSection section : header.getSections()) {
+                    sha.update(image.getSection(section.getName()));
+                    BinaryUtils.writeIntLittleEndian(sha, section.getSize());
+                }
+                byte[] digest = sha.digest();
+                if (!header.matchesId(digest)) {
+                    problems.add(String.format("The id does not match the content of the sections: %s expected, %s found.", BinaryUtils.toHex(Arrays.copyOf(header.getId(), digest.length)), BinaryUtils.toHex(digest)));
+                }
+            } finally {
+                BinaryUtils.release(sha);
+            }
+        }
+    }
+
+    /**
+     * Command line entry point:
+     * <pre>
+     * BootImageScanner reportFile directory [threads]
+     * </pre>
+     * Scans all the files of the directory and its sub-directories, and exits with status 1 if any image has a
+     * problem.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BootImageScanner reportFile directory [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        List<File> files = new ArrayList<File>();
+        BootImageIndex.listFiles(new File(args[1]), files);
+        final BootImageScanner scanner = new BootImageScanner();
+        final AtomicInteger invalid = new AtomicInteger();
+        final Writer report = openReport(new File(args[0]));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final File file : files) {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Result result;
+                        try {
+                            result = scanner.scan(file);
+                        } catch (IOException e) {
+                            result = new Result(file.getPath());
+                            result.getProblems().add(new Problem(READ, String.valueOf(e)));
+                        }
+                        if (!result.isValid()) {
+                            invalid.incrementAndGet();
+                        }
+                        try {
+                            writeResult(report, result);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+            report.close();
+        }
+        System.out.println(String.format("%d boot images scanned, %d with problems.", files.size(), invalid.get()));
+        if (invalid.get() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import lombok.Data;
+
+/**
+ * Place of a section in a boot image: its size bytes start at position, and are followed by padding zero bytes up to
+ * the next page.
+ */
+@Data
+public class BootImageSection {
+
+    private final String name;
+    private final long position;
+    private final int size;
+    private final int padding;
+
+    public long getEnd() {
+        return position + size + padding;
+    }
+}
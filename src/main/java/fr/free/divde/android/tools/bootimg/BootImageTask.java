@@ -0,0 +1,104 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.metrics.JmxMetricsListener;
+import fr.free.divde.android.tools.metrics.MetricsListener;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import javax.management.JMException;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Base class of the tasks which process a single boot image, and report the metrics of their phases.
+ */
+@Getter
+@Setter
+public abstract class BootImageTask extends Task {
+
+    /** prefix of the project references holding the metrics listeners, followed by their class name */
+    private static final String LISTENER_REFERENCE = "fr.free.divde.android.tools.metricsListener.";
+
+    /** prefix of the properties which receive the metrics */
+    private String metricsProperty;
+    /** output file: JSON report of the metrics */
+    private File metricsReport;
+    /** cumulate the metrics in the JMX MBean of the JVM */
+    private boolean metricsJmx;
+    /** name of a class implementing MetricsListener, which receives the metrics */
+    private String metricsListener;
+
+    /**
+     * Sends the metrics of a completed execution to the outputs configured on the task.
+     */
+    protected void publishMetrics(TaskMetrics metrics) throws IOException {
+        metrics.finish();
+        log(String.format(Locale.ENGLISH, "%s completed in %.3f ms (%d bytes)", metrics.getTaskName(), metrics.getTotalNanos() / 1e6, metrics.getTotalBytes()), Project.MSG_VERBOSE);
+        for (TaskMetrics.Phase phase : metrics.getPhaseList()) {
+            log(String.format(Locale.ENGLISH, "  %s: %.3f ms, %d bytes, %d calls, %.1f MB/s", phase.getName(), phase.getNanos() / 1e6, phase.getBytes(), phase.getCalls(), phase.getMegabytesPerSecond()), Project.MSG_VERBOSE);
+        }
+        if (metricsProperty != null) {
+            getProject().setProperty(metricsProperty + ".total.millis", Long.toString(metrics.getTotalNanos() / 1000000));
+            getProject().setProperty(metricsProperty + ".total.bytes", Long.toString(metrics.getTotalBytes()));
+            for (TaskMetrics.Phase phase : metrics.getPhaseList()) {
+                String prefix = metricsProperty + "." + phase.getName();
+                getProject().setProperty(prefix + ".millis", Long.toString(phase.getNanos() / 1000000));
+                getProject().setProperty(prefix + ".bytes", Long.toString(phase.getBytes()));
+                getProject().setProperty(prefix + ".calls", Long.toString(phase.getCalls()));
+                getProject().setProperty(prefix + ".mbps", String.format(Locale.ENGLISH, "%.1f", phase.getMegabytesPerSecond()));
+            }
+        }
+        if (metricsReport != null) {
+            metrics.writeJson(metricsReport);
+        }
+        try {
+            if (metricsJmx) {
+                JmxMetricsListener.getInstance().taskCompleted(metrics);
+            }
+            if (metricsListener != null) {
+                getListener().taskCompleted(metrics);
+            }
+        } catch (JMException e) {
+            throw new BuildException(e);
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Returns the instance of the metricsListener class, created once per project so that it receives the metrics of
+     * all the tasks, including the ones run by batch tasks.
+     */
+    private MetricsListener getListener() throws ReflectiveOperationException {
+        Project project = getProject();
+        synchronized (project) {
+            MetricsListener listener = (MetricsListener) project.getReference(LISTENER_REFERENCE + metricsListener);
+            if (listener == null) {
+                listener = (MetricsListener) Class.forName(metricsListener, true, getClass().getClassLoader()).getDeclaredConstructor().newInstance();
+                project.addReference(LISTENER_REFERENCE + metricsListener, listener);
+            }
+            return listener;
+        }
+    }
+}
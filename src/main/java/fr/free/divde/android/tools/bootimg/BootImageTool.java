@@ -0,0 +1,354 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.IntrospectionHelper;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Runs the boot image tasks from the command line, without an Ant build file. Each request creates a bare
+ * {@link Project} (the default tasks and types are not loaded), sets the attributes of the task as Ant would, executes
+ * it and returns the properties it stored.
+ * <p>
+ * In server mode, requests are read from the standard input as JSON objects, one per line, such as
+ * <code>{"id":"1","task":"extractBootImage","bootImage":"boot.img","kernel":"kernel.img"}</code>, and executed
+ * concurrently. A response is written to the standard output for each request, in the order they complete:
+ * <code>{"id":"1","ok":true,"millis":12.345,"properties":{...}}</code>, or <code>"ok":false</code> with an
+ * <code>"error"</code> message. The JVM stays warm between requests, and the worker threads keep their header buffers.
+ */
+public class BootImageTool {
+
+    private static final Map<String, Class<? extends Task>> TASKS = new LinkedHashMap<String, Class<? extends Task>>();
+
+    static {
+        TASKS.put("extractBootImage", ExtractBootImage.class);
+        TASKS.put("makeBootImage", MakeBootImage.class);
+        TASKS.put("patchBootImage", PatchBootImage.class);
+        TASKS.put("diffBootImage", DiffBootImage.class);
+        TASKS.put("applyBootImageDelta", ApplyBootImageDelta.class);
+        TASKS.put("extractVendorBootImage", ExtractVendorBootImage.class);
+        TASKS.put("makeVendorBootImage", MakeVendorBootImage.class);
+    }
+
+    private final File baseDir;
+    private final PrintStream log;
+    private final int logLevel;
+
+    /**
+     * Creates a tool resolving relative paths against baseDir, and logging the messages up to logLevel (one of the
+     * Project.MSG_* levels) to log, if it is not null.
+     */
+    public BootImageTool(File baseDir, PrintStream log, int logLevel) {
+        this.baseDir = baseDir;
+        this.log = log;
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Executes the named task with the given attributes, and returns the properties it stored.
+     */
+    public Map<String, String> run(String taskName, Map<String, String> attributes) {
+        Class<? extends Task> taskClass = TASKS.get(taskName);
+        if (taskClass == null) {
+            throw new IllegalArgumentException(String.format("Unknown task: %s", taskName));
+        }
+        Project project = new Project();
+        project.setBaseDir(baseDir);
+        if (log != null) {
+            DefaultLogger logger = new DefaultLogger();
+            logger.setMessageOutputLevel(logLevel);
+            logger.setOutputPrintStream(log);
+            logger.setErrorPrintStream(log);
+            project.addBuildListener(logger);
+        }
+        Task task;
+        try {
+            task = taskClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        task.setProject(project);
+        task.setTaskName(taskName);
+        task.init();
+        IntrospectionHelper helper = IntrospectionHelper.getHelper(project, taskClass);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            helper.setAttribute(project, task, attribute.getKey(), attribute.getValue());
+        }
+        task.execute();
+        Map<String, String> properties = new TreeMap<String, String>();
+        for (Object entry : project.getProperties().entrySet()) {
+            Map.Entry<?, ?> property = (Map.Entry<?, ?>) entry;
+            properties.put(String.valueOf(property.getKey()), String.valueOf(property.getValue()));
+        }
+        properties.remove("basedir");
+        return properties;
+    }
+
+    /**
+     * Reads requests from input until its end, executes them on the given number of threads and writes the responses
+     * to output.
+     */
+    public void serve(BufferedReader input, final PrintStream output, int threads) throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                final String request = line;
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        String response = handle(request);
+                        synchronized (output) {
+                            output.println(response);
+                            output.flush();
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Executes a JSON request and returns the JSON response.
+     */
+    public String handle(String request) {
+        String id = null;
+        StringBuilder response = new StringBuilder();
+        long start = System.nanoTime();
+        try {
+            Map<String, String> attributes = parseJsonObject(request);
+            id = attributes.remove("id");
+            String taskName = attributes.remove("task");
+            Map<String, String> properties = run(taskName, attributes);
+            response.append("{\"id\":").append(TaskMetrics.quote(id));
+            response.append(",\"ok\":true");
+            response.append(",\"millis\":").append(formatMillis(start));
+            response.append(",\"properties\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                if (!first) {
+                    response.append(',');
+                }
+                first = false;
+                response.append(TaskMetrics.quote(property.getKey())).append(':').append(TaskMetrics.quote(property.getValue()));
+            }
+            response.append("}}");
+        } catch (Exception e) {
+            response.setLength(0);
+            response.append("{\"id\":").append(TaskMetrics.quote(id));
+            response.append(",\"ok\":false");
+            response.append(",\"millis\":").append(formatMillis(start));
+            response.append(",\"error\":").append(TaskMetrics.quote(getMessage(e)));
+            response.append('}');
+        }
+        return response.toString();
+    }
+
+    private static String formatMillis(long start) {
+        return String.format(Locale.ENGLISH, "%.3f", (System.nanoTime() - start) / 1e6);
+    }
+
+    private static String getMessage(Throwable e) {
+        while (e.getCause() != null && e.getCause() != e) {
+            e = e.getCause();
+        }
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    /**
+     * Parses a JSON object whose values are strings, numbers, booleans or null, and returns them as strings (null
+     * values are left out).
+     */
+    static Map<String, String> parseJsonObject(String json) {
+        JsonReader reader = new JsonReader(json);
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        reader.expect('{');
+        if (!reader.consume('}')) {
+            do {
+                String key = reader.readString();
+                reader.expect(':');
+                String value = reader.readValue();
+                if (value != null) {
+                    result.put(key, value);
+                }
+            } while (reader.consume(','));
+            reader.expect('}');
+        }
+        reader.expectEnd();
+        return result;
+    }
+
+    private static class JsonReader {
+
+        private final String json;
+        private int position;
+
+        public JsonReader(String json) {
+            this.json = json;
+        }
+
+        private void skipSpaces() {
+            while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+                position++;
+            }
+        }
+
+        public boolean consume(char c) {
+            skipSpaces();
+            if (position < json.length() && json.charAt(position) == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        public void expect(char c) {
+            if (!consume(c)) {
+                throw error(String.format("'%c' expected", c));
+            }
+        }
+
+        public void expectEnd() {
+            skipSpaces();
+            if (position < json.length()) {
+                throw error("end of line expected");
+            }
+        }
+
+        public String readValue() {
+            skipSpaces();
+            if (position < json.length() && json.charAt(position) == '"') {
+                return readString();
+            }
+            int start = position;
+            while (position < json.length() && "-+.0123456789eEtrufalsn".indexOf(json.charAt(position)) >= 0) {
+                position++;
+            }
+            String value = json.substring(start, position);
+            if ("null".equals(value)) {
+                return null;
+            }
+            if (!("true".equals(value) || "false".equals(value) || value.matches("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?"))) {
+                throw error(String.format("unsupported value '%s'", value));
+            }
+            return value;
+        }
+
+        public String readString() {
+            expect('"');
+            StringBuilder result = new StringBuilder();
+            while (true) {
+                if (position >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char c = json.charAt(position++);
+                if (c == '"') {
+                    return result.toString();
+                }
+                if (c != '\\') {
+                    result.append(c);
+                    continue;
+                }
+                if (position >= json.length()) {
+                    throw error("unterminated string");
+                }
+                c = json.charAt(position++);
+                if (c == 'u' && position + 4 <= json.length()) {
+                    result.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    position += 4;
+                } else if (c == 'n') {
+                    result.append('\n');
+                } else if (c == 't') {
+                    result.append('\t');
+                } else if (c == 'r') {
+                    result.append('\r');
+                } else if (c == 'b') {
+                    result.append('\b');
+                } else if (c == 'f') {
+                    result.append('\f');
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("Invalid JSON request at character %d: %s", position, message));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || !("serve".equals(args[0]) || TASKS.containsKey(args[0]))) {
+            System.err.println("Usage: BootImageTool task [attribute=value...]");
+            System.err.println("       BootImageTool serve [threads]");
+            System.err.println(String.format("Tasks: %s", TASKS.keySet()));
+            System.exit(2);
+        }
+        File baseDir = new File(".").getAbsoluteFile();
+        if ("serve".equals(args[0])) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            BootImageTool tool = new BootImageTool(baseDir, System.err, Project.MSG_WARN);
+            BufferedReader input = new BufferedReader(new InputStreamReader(System.in, Charset.forName("UTF-8")));
+            PrintStream output = new PrintStream(System.out, false, "UTF-8");
+            tool.serve(input, output, threads);
+            output.flush();
+            return;
+        }
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                System.err.println(String.format("Invalid argument (attribute=value expected): %s", args[i]));
+                System.exit(2);
+            }
+            attributes.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        BootImageTool tool = new BootImageTool(baseDir, System.err, Project.MSG_INFO);
+        try {
+            for (Map.Entry<String, String> property : tool.run(args[0], attributes).entrySet()) {
+                System.out.println(property.getKey() + "=" + property.getValue());
+            }
+        } catch (RuntimeException e) {
+            System.err.println(getMessage(e));
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import lombok.Cleanup;
+
+/**
+ * Persistent record of the inputs used to build boot images, so that an image can be left untouched when none of its
+ * inputs changed. The cache is a properties file which can be shared by several images: each entry is prefixed by the
+ * absolute path of the image it belongs to. The file is loaded once per instance, and the entries recorded by
+ * {@link #store} are only written by {@link #save}, so that a batch of images reads and writes it once.
+ */
+public class BuildCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ID = "id";
+    private static final String FINGERPRINT = "fingerprint";
+    private static final String OUTPUT_SIZE = "output.size";
+    private static final String OUTPUT_MODIFIED = "output.modified";
+    private static final String[] ENTRIES = {ID, FINGERPRINT, OUTPUT_SIZE, OUTPUT_MODIFIED};
+    private final File file;
+    private Properties cache;
+    private final Properties updates = new Properties();
+    private final Set<String> removals = new HashSet<String>();
+
+    public BuildCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the fingerprint of the inputs of an image: the size and modification time (and optionally the SHA-1) of
+     * each input file, or of each file of an input directory, the given build options, and every header field except
+     * the id and the sizes of the sections, which only depend on the inputs. It is computed before the inputs are
+     * transformed (a ramdisk directory packed, for example), so that an up-to-date image is not built at all.
+     */
+    public Properties fingerprint(BootImageFile header, Map<String, File> inputs, Map<String, String> options, boolean contentHash) throws IOException, NoSuchAlgorithmException {
+        Properties fingerprint = new Properties();
+        for (Map.Entry<String, File> input : inputs.entrySet()) {
+            File file = input.getValue();
+            if (file != null && file.isDirectory()) {
+                addDirectory(fingerprint, input.getKey(), file, contentHash);
+            } else {
+                addFile(fingerprint, input.getKey(), file, contentHash);
+            }
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            fingerprint.setProperty(option.getKey(), option.getValue() != null ? option.getValue() : "");
+        }
+        fingerprint.setProperty("magic", header.getMagic());
+        fingerprint.setProperty("kernelAddr", Integer.toString(header.getKernelAddr()));
+        fingerprint.setProperty("ramdiskAddr", Integer.toString(header.getRamdiskAddr()));
+        fingerprint.setProperty("secondAddr", Integer.toString(header.getSecondAddr()));
+        fingerprint.setProperty("tagsAddr", Integer.toString(header.getTagsAddr()));
+        fingerprint.setProperty("pageSize", Integer.toString(header.getPageSize()));
+        fingerprint.setProperty("headerVersion", Integer.toString(header.getHeaderVersion()));
+        fingerprint.setProperty("osVersion", Integer.toString(header.getOsVersion()));
+        fingerprint.setProperty("name", header.getName());
+        fingerprint.setProperty("args", header.getArgs());
+        fingerprint.setProperty("extraArgs", header.getExtraArgs());
+        fingerprint.setProperty("dtbAddr", Long.toString(header.getDtbAddr()));
+        return fingerprint;
+    }
+
+    /**
+     * Checks whether bootImage was built from the given fingerprint and was not modified since. If so, returns the
+     * header of the image, otherwise returns null.
+     */
+    public BootImageFile getUpToDateHeader(File bootImage, Properties fingerprint) throws IOException, NoSuchAlgorithmException {
+        if (!bootImage.isFile()) {
+            return null;
+        }
+        String prefix = getPrefix(bootImage);
+        Properties cache = getCache();
+        if (!digest(fingerprint).equals(cache.getProperty(prefix + FINGERPRINT))) {
+            return null;
+        }
+        if (!Long.toString(bootImage.length()).equals(cache.getProperty(prefix + OUTPUT_SIZE))
+                || !Long.toString(bootImage.lastModified()).equals(cache.getProperty(prefix + OUTPUT_MODIFIED))) {
+            return null;
+        }
+        @Cleanup
+        RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "r");
+        BootImageFile existingHeader = new BootImageFile();
+        existingHeader.read(bootImageAccess);
+        if (!BinaryUtils.toHex(existingHeader.getId()).equals(cache.getProperty(prefix + ID))) {
+            return null;
+        }
+        return existingHeader;
+    }
+
+    /**
+     * Records that bootImage, with the given header, was just built from the given fingerprint. The record is written
+     * to the file by {@link #save}. Only the SHA-1 of the whole fingerprint is kept, so that an input which is not part
+     * of the fingerprint any more (a file removed from a ramdisk directory) makes the image out of date.
+     */
+    public synchronized void store(File bootImage, Properties fingerprint, BootImageFile header) throws IOException, NoSuchAlgorithmException {
+        String prefix = getPrefix(bootImage);
+        Properties cache = getCache();
+        removeOldEntries(cache, prefix);
+        setProperty(cache, prefix + FINGERPRINT, digest(fingerprint));
+        setProperty(cache, prefix + OUTPUT_SIZE, Long.toString(bootImage.length()));
+        setProperty(cache, prefix + OUTPUT_MODIFIED, Long.toString(bootImage.lastModified()));
+        setProperty(cache, prefix + ID, BinaryUtils.toHex(header.getId()));
+    }
+
+    private void setProperty(Properties cache, String key, String value) {
+        cache.setProperty(key, value);
+        updates.setProperty(key, value);
+    }
+
+    /**
+     * Removes the entries of the image with the given prefix which are not part of the current format (one entry per
+     * input in older caches). The entries of other images whose path starts with the same prefix are kept.
+     */
+    private void removeOldEntries(Properties cache, String prefix) {
+        List<String> oldKeys = new ArrayList<String>();
+        for (String key : cache.stringPropertyNames()) {
+            if (key.startsWith(prefix) && !isEntry(key)) {
+                oldKeys.add(key);
+            }
+        }
+        for (String key : oldKeys) {
+            cache.remove(key);
+            updates.remove(key);
+            removals.add(key);
+        }
+    }
+
+    private static boolean isEntry(String key) {
+        for (String entry : ENTRIES) {
+            if (key.endsWith("." + entry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the records added since the last save to the file, merged with its current content (other tasks or
+     * processes may share it). The file is written to a temporary file first, and renamed atomically.
+     */
+    public synchronized void save() throws IOException {
+        if (updates.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        synchronized (BuildCache.class) {
+            Properties merged = load();
+            for (String key : removals) {
+                merged.remove(key);
+            }
+            merged.putAll(updates);
+            File directory = file.getAbsoluteFile().getParentFile();
+            File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            try {
+                @Cleanup
+                FileOutputStream output = new FileOutputStream(tempFile);
+                merged.store(output, "Boot image build cache");
+                output.close();
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tempFile.delete();
+            }
+        }
+        updates.clear();
+        removals.clear();
+    }
+
+    private synchronized Properties getCache() throws IOException {
+        if (cache == null) {
+            cache = load();
+        }
+        return cache;
+    }
+
+    private Properties load() throws IOException {
+        Properties cache = new Properties();
+        if (file.isFile()) {
+            @Cleanup
+            FileInputStream input = new FileInputStream(file);
+            cache.load(input);
+        }
+        return cache;
+    }
+
+    private static String getPrefix(File bootImage) {
+        return bootImage.getAbsolutePath() + ".";
+    }
+
+    /**
+     * Returns the SHA-1 of every key and value of the fingerprint, in the order of the keys.
+     */
+    private static String digest(Properties fingerprint) throws NoSuchAlgorithmException {
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        try {
+            for (String key : new TreeSet<String>(fingerprint.stringPropertyNames())) {
+                sha.update(key.getBytes(UTF_8));
+                sha.update((byte) 0);
+                sha.update(fingerprint.getProperty(key).getBytes(UTF_8));
+                sha.update((byte) 0);
+            }
+            return BinaryUtils.toHex(sha.digest());
+        } finally {
+            BinaryUtils.release(sha);
+        }
+    }
+
+    private static void addFile(Properties fingerprint, String key, File file, boolean contentHash) throws IOException, NoSuchAlgorithmException {
+        if (file == null) {
+            fingerprint.setProperty(key, "");
+            return;
+        }
+        fingerprint.setProperty(key, file.getAbsolutePath());
+        fingerprint.setProperty(key + ".size", Long.toString(file.length()));
+        fingerprint.setProperty(key + ".modified", Long.toString(file.lastModified()));
+        if (contentHash) {
+            fingerprint.setProperty(key + ".sha1", BinaryUtils.toHex(hashFile(file)));
+        }
+    }
+
+    /**
+     * Adds every file, directory and symbolic link below directory, which makes the fingerprint change when one of
+     * them is added, removed or modified.
+     */
+    private static void addDirectory(Properties fingerprint, String key, File directory, boolean contentHash) throws IOException, NoSuchAlgorithmException {
+        fingerprint.setProperty(key, directory.getAbsolutePath());
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            String childKey = key + "/" + child.getName();
+            Path path = child.toPath();
+            if (Files.isSymbolicLink(path)) {
+                fingerprint.setProperty(childKey, "-> " + Files.readSymbolicLink(path));
+            } else if (child.isDirectory()) {
+                addDirectory(fingerprint, childKey, child, contentHash);
+            } else {
+                addFile(fingerprint, childKey, child, contentHash);
+                fingerprint.setProperty(childKey + ".executable", Boolean.toString(child.canExecute()));
+            }
+        }
+    }
+
+    private static byte[] hashFile(File file) throws IOException, NoSuchAlgorithmException {
+        @Cleanup
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        FileChannel channel = access.getChannel();
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        ByteBuffer chunk = BinaryUtils.acquireBuffer();
+        try {
+            long position = 0;
+            int sizeRead;
+            while ((sizeRead = channel.read(chunk, position)) != -1) {
+                position += sizeRead;
+                chunk.flip();
+                sha.update(chunk);
+                chunk.clear();
+            }
+            return sha.digest();
+        } finally {
+            BinaryUtils.release(chunk);
+            BinaryUtils.release(sha);
+        }
+    }
+}
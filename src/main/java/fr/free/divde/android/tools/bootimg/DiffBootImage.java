@@ -0,0 +1,69 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Writes the differences between two boot images to a delta file, which applyBootImageDelta can apply to the old image
+ * to get the new one.
+ */
+@Getter
+@Setter
+public class DiffBootImage extends BootImageTask {
+
+    /** input file: the image the delta applies to */
+    private File oldImage;
+    /** input file: the image the delta produces */
+    private File newImage;
+    /** output file */
+    private File delta;
+    /** size of the blocks of the old image searched in the new one */
+    private int blockSize = BootImageDelta.DEFAULT_BLOCK_SIZE;
+    /** number of threads searching the blocks */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            diff();
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Writes the delta file and returns its statistics.
+     */
+    public BootImageDelta.Stats diff() throws IOException, NoSuchAlgorithmException {
+        TaskMetrics metrics = new TaskMetrics("diffBootImage", String.valueOf(delta));
+        log(String.format("Writing boot image delta: %s", delta));
+        long start = metrics.now();
+        BootImageDelta.Stats stats = BootImageDelta.create(oldImage, newImage, delta, blockSize, threads);
+        metrics.record("diff", start, newImage.length(), stats.getChangedRegions() + stats.getUnchangedRegions());
+        log(String.format("%d bytes copied, %d literal bytes, %d unchanged regions, %d changed regions", stats.getCopiedBytes(), stats.getLiteralBytes(), stats.getUnchangedRegions(), stats.getChangedRegions()));
+        publishMetrics(metrics);
+        return stats;
+    }
+}
@@ -19,26 +19,56 @@
 package fr.free.divde.android.tools.bootimg;
 
 import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.compress.Decompressor;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import fr.free.divde.android.tools.metrics.TimedMessageDigest;
+import fr.free.divde.android.tools.ramdisk.RamdiskDirectory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import lombok.Cleanup;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.Task;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.ResourceCollection;
 
 @Getter
 @Setter
-public class ExtractBootImage extends Task {
+public class ExtractBootImage extends BootImageTask {
 
     /** input file */
     private File bootImage;
+    /** input resource read as a stream (for example a zip entry), used when bootImage is not set */
+    private final List<ResourceCollection> bootImageResources = new ArrayList<ResourceCollection>();
     /** output file: kernel */
     private File kernel;
     /** output file: ramdisk */
     private File ramdisk;
     /** output file: second */
     private File second;
+    /** output file: recovery DTBO (header version 1 and 2) */
+    private File recoveryDtbo;
+    /** output file: DTB (header version 2) */
+    private File dtb;
+    /** output file: boot signature (header version 4) */
+    private File signature;
     private String storeBaseAddr;
     private String storeKernelAddr;
     private String storeKernelSize;
@@ -50,6 +80,34 @@ public class ExtractBootImage extends Task {
     private String storePageSize;
     private String storeName;
     private String storeArgs;
+    private String storeExtraArgs;
+    private String storeHeaderVersion;
+    private String storeOsVersion;
+    /** directory of a content-addressed store: sections are added to it and output files are linked to it */
+    private File sectionStore;
+    private String storeKernelRef;
+    private String storeRamdiskRef;
+    private String storeSecondRef;
+    /** output directory: content of the ramdisk */
+    private File ramdiskDirectory;
+    /** output file: list of the ramdisk entries with their attributes */
+    private File ramdiskList;
+    /** check that the id of the image matches its sections, hashing them while they are extracted */
+    private boolean verify;
+    /** only check the id, from a mapped view of the image, without writing any output */
+    private boolean verifyOnly;
+    /** fail if the id does not match, otherwise only log it */
+    private boolean failOnMismatch = true;
+    /** property which receives true or false, whether the id matches */
+    private String storeVerified;
+    /** write the decompressed kernel to the kernel file, if its compression is supported (gzip or legacy LZ4) */
+    private boolean decompressKernel;
+    /** output file: bytes which follow the compressed kernel (for example appended device trees), with decompressKernel */
+    private File kernelAppendedData;
+    /** property which receives the compression of the kernel (none, gzip, lz4, lz4frame, xz, lzma, bzip2, zstd), with decompressKernel */
+    private String storeKernelCompression;
+    /** number of threads decompressing LZ4 kernel blocks */
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
 
     private void storeProperty(String propertyName, int propertyValue) {
         if (propertyName != null) {
@@ -63,14 +121,29 @@ public class ExtractBootImage extends Task {
         }
     }
 
+    /**
+     * Adds nested resources. They are only listed when the task runs, as Ant adds nested elements before configuring
+     * them.
+     */
+    public void add(ResourceCollection resources) {
+        bootImageResources.add(resources);
+    }
+
+    private List<Resource> listBootImageResources() {
+        List<Resource> resources = new ArrayList<Resource>();
+        for (ResourceCollection collection : bootImageResources) {
+            Iterator<?> iterator = collection.iterator();
+            while (iterator.hasNext()) {
+                resources.add((Resource) iterator.next());
+            }
+        }
+        return resources;
+    }
+
     @Override
     public void execute() throws BuildException {
         try {
-            System.out.println(String.format("Reading boot image: %s", bootImage));
-            @Cleanup
-            RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "r");
-            BootImageFile bootImageHeader = new BootImageFile();
-            bootImageHeader.read(bootImageAccess);
+            BootImageFile bootImageHeader = extract();
             storeProperty(storeBaseAddr, bootImageHeader.getBaseAddr());
             storeProperty(storeKernelAddr, bootImageHeader.getKernelAddr());
             storeProperty(storeKernelSize, bootImageHeader.getKernelSize());
@@ -82,36 +155,245 @@ public class ExtractBootImage extends Task {
             storeProperty(storePageSize, bootImageHeader.getPageSize());
             storeProperty(storeName, bootImageHeader.getName());
             storeProperty(storeArgs, bootImageHeader.getArgs());
+            storeProperty(storeExtraArgs, bootImageHeader.getExtraArgs());
+            storeProperty(storeHeaderVersion, Integer.toString(bootImageHeader.getHeaderVersion()));
+            storeProperty(storeOsVersion, bootImageHeader.getOsVersion());
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
 
-            if (kernel != null) {
-                System.out.println(String.format("Extracting kernel: %s", kernel));
-                @Cleanup
-                RandomAccessFile kernelAccess = new RandomAccessFile(kernel, "rw");
-                int kernelFileSize = bootImageHeader.getKernelSize();
-                kernelAccess.setLength(kernelFileSize);
-                bootImageAccess.seek(bootImageHeader.getKernelPosition());
-                BinaryUtils.copyBytes(bootImageAccess, kernelAccess, kernelFileSize, null);
+    /**
+     * Reads the header of the boot image and extracts the requested sections. Header properties are stored by execute,
+     * only the properties of section references are stored here.
+     */
+    public BootImageFile extract() throws IOException, NoSuchAlgorithmException {
+        if (decompressKernel && sectionStore != null) {
+            throw new IllegalArgumentException("The section store cannot be used to decompress the kernel.");
+        }
+        TaskMetrics metrics = new TaskMetrics("extractBootImage", String.valueOf(bootImage != null ? bootImage : bootImageResources));
+        MessageDigest pooledSha = verify || verifyOnly ? BinaryUtils.acquireSha1() : null;
+        try {
+            MessageDigest sha = pooledSha != null ? new TimedMessageDigest(pooledSha, metrics, "hashing") : null;
+            BootImageFile bootImageHeader = bootImage != null ? extractFile(metrics, sha) : extractStream(metrics, sha);
+            if (sha != null) {
+                checkId(bootImageHeader, sha.digest());
             }
-            if (ramdisk != null) {
-                System.out.println(String.format("Extracting ramdisk: %s", ramdisk));
-                @Cleanup
-                RandomAccessFile ramdiskAccess = new RandomAccessFile(ramdisk, "rw");
-                int ramdiskFileSize = bootImageHeader.getRamdiskSize();
-                ramdiskAccess.setLength(ramdiskFileSize);
-                bootImageAccess.seek(bootImageHeader.getRamdiskPosition());
-                BinaryUtils.copyBytes(bootImageAccess, ramdiskAccess, ramdiskFileSize, null);
+            publishMetrics(metrics);
+            return bootImageHeader;
+        } finally {
+            BinaryUtils.release(pooledSha);
+        }
+    }
+
+    private void checkId(BootImageFile bootImageHeader, byte[] digest) throws IOException {
+        if (!bootImageHeader.hasId()) {
+            log(String.format("Boot image header version %d has no id to verify.", bootImageHeader.getHeaderVersion()), Project.MSG_WARN);
+            return;
+        }
+        boolean verified = bootImageHeader.matchesId(digest);
+        storeProperty(storeVerified, Boolean.toString(verified));
+        if (verified) {
+            log(String.format("Boot image id verified: %s", BinaryUtils.toHex(digest)));
+            return;
+        }
+        String message = String.format("Boot image id does not match its content. Expected %s, found %s.", BinaryUtils.toHex(Arrays.copyOf(bootImageHeader.getId(), digest.length)), BinaryUtils.toHex(digest));
+        if (failOnMismatch) {
+            throw new InvalidObjectException(message);
+        }
+        log(message, Project.MSG_WARN);
+    }
+
+    private BootImageFile extractFile(TaskMetrics metrics, MessageDigest sha) throws IOException, NoSuchAlgorithmException {
+        log(String.format("Reading boot image: %s", bootImage));
+        long start = metrics.now();
+        @Cleanup
+        RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "r");
+        BootImageFile bootImageHeader = new BootImageFile();
+        bootImageHeader.read(bootImageAccess);
+        metrics.record("header", start, bootImageHeader.getHeaderSize(), 1);
+        SectionStore store = sectionStore != null && !verifyOnly ? new SectionStore(sectionStore) : null;
+
+        for (BootImageSection section : bootImageHeader.getSections()) {
+            File output = verifyOnly ? null : getOutput(section.getName());
+            String refProperty = getRefProperty(section.getName());
+            if (output != null && decompressKernel && BootImageFile.KERNEL.equals(section.getName())) {
+                if (sha != null) {
+                    BootImageFile.hashSection(sha, bootImageAccess.getChannel(), section);
+                }
+                ByteBuffer kernelContent = bootImageAccess.getChannel().map(FileChannel.MapMode.READ_ONLY, section.getPosition(), section.getSize());
+                decompressKernel(BinaryUtils.newInputStream(kernelContent), output, section.getSize(), metrics);
+            } else if (output != null || (store != null && refProperty != null)) {
+                String ref = extractSection(section, metrics, bootImageAccess, output, store, sha);
+                storeProperty(refProperty, ref);
+            } else if (sha != null) {
+                BootImageFile.hashSection(sha, bootImageAccess.getChannel(), section);
             }
-            if (second != null) {
-                System.out.println(String.format("Extracting second: %s", second));
-                @Cleanup
-                RandomAccessFile secondAccess = new RandomAccessFile(second, "rw");
-                int secondFileSize = bootImageHeader.getSecondSize();
-                secondAccess.setLength(secondFileSize);
-                bootImageAccess.seek(bootImageHeader.getSecondPosition());
-                BinaryUtils.copyBytes(bootImageAccess, secondAccess, secondFileSize, null);
+            if (sha != null) {
+                BinaryUtils.writeIntLittleEndian(sha, section.getSize());
             }
-        } catch (Exception e) {
-            throw new BuildException(e);
         }
+        if (ramdiskDirectory != null && !verifyOnly && bootImageHeader.getRamdiskSize() > 0) {
+            log(String.format("Unpacking ramdisk: %s", ramdiskDirectory));
+            start = metrics.now();
+            ByteBuffer ramdiskContent = bootImageAccess.getChannel().map(FileChannel.MapMode.READ_ONLY, bootImageHeader.getRamdiskPosition(), bootImageHeader.getRamdiskSize());
+            RamdiskDirectory.unpack(new BufferedInputStream(BinaryUtils.newInputStream(ramdiskContent)), ramdiskDirectory, ramdiskList);
+            metrics.record("ramdiskUnpack", start, bootImageHeader.getRamdiskSize(), 0);
+        }
+        return bootImageHeader;
+    }
+
+    private File getOutput(String sectionName) {
+        if (BootImageFile.KERNEL.equals(sectionName)) {
+            return kernel;
+        } else if (BootImageFile.RAMDISK.equals(sectionName)) {
+            return ramdisk;
+        } else if (BootImageFile.SECOND.equals(sectionName)) {
+            return second;
+        } else if (BootImageFile.RECOVERY_DTBO.equals(sectionName)) {
+            return recoveryDtbo;
+        } else if (BootImageFile.DTB.equals(sectionName)) {
+            return dtb;
+        } else if (BootImageFile.SIGNATURE.equals(sectionName)) {
+            return signature;
+        }
+        return null;
+    }
+
+    private String getRefProperty(String sectionName) {
+        if (BootImageFile.KERNEL.equals(sectionName)) {
+            return storeKernelRef;
+        } else if (BootImageFile.RAMDISK.equals(sectionName)) {
+            return storeRamdiskRef;
+        } else if (BootImageFile.SECOND.equals(sectionName)) {
+            return storeSecondRef;
+        }
+        return null;
+    }
+
+    /**
+     * Copies a section to output, or adds it to the store and links output to the stored file. Returns the reference
+     * of the section in the store, or null if there is no store. The bytes of the section are fed to sha, if not null.
+     */
+    private String extractSection(BootImageSection section, TaskMetrics metrics, RandomAccessFile bootImageAccess, File output, SectionStore store, MessageDigest sha) throws IOException, NoSuchAlgorithmException {
+        String sectionName = section.getName();
+        long position = section.getPosition();
+        int size = section.getSize();
+        long start = metrics.now();
+        if (store != null) {
+            String ref = store.put(bootImageAccess.getChannel(), position, size);
+            if (output != null) {
+                log(String.format("Linking %s: %s -> %s", sectionName, output, ref));
+                store.link(ref, output);
+            }
+            metrics.record(sectionName, start, size, 0);
+            if (sha != null) {
+                BootImageFile.hashSection(sha, bootImageAccess.getChannel(), section);
+            }
+            return ref;
+        }
+        log(String.format("Extracting %s: %s", sectionName, output));
+        @Cleanup
+        RandomAccessFile outputAccess = BinaryUtils.createFile(output);
+        outputAccess.setLength(size);
+        bootImageAccess.seek(position);
+        long chunks = BinaryUtils.copyBytes(bootImageAccess, outputAccess, size, sha);
+        metrics.record(sectionName, start, size, chunks);
+        return null;
+    }
+
+    /**
+     * Writes the decompressed kernel to output, and the bytes which follow the compressed data to kernelAppendedData.
+     */
+    private void decompressKernel(InputStream content, File output, int size, TaskMetrics metrics) throws IOException {
+        log(String.format("Decompressing kernel: %s", output));
+        long start = metrics.now();
+        @Cleanup
+        OutputStream outputStream = new BufferedOutputStream(BinaryUtils.createOutputStream(output));
+        OutputStream appendedStream = kernelAppendedData != null ? new BufferedOutputStream(BinaryUtils.createOutputStream(kernelAppendedData)) : null;
+        Decompressor.Result result;
+        try {
+            result = Decompressor.decompress(content, outputStream, appendedStream, decompressionThreads);
+        } finally {
+            if (appendedStream != null) {
+                appendedStream.close();
+            }
+        }
+        metrics.record("kernelDecompress", start, size, 0);
+        storeProperty(storeKernelCompression, result.getCompression().getName());
+        if (!result.getCompression().isSupported()) {
+            log(String.format("Kernel compression %s is not supported, the kernel is extracted as is.", result.getCompression().getName()), Project.MSG_WARN);
+            return;
+        }
+        log(String.format("Kernel compression: %s, %d bytes decompressed to %d bytes.", result.getCompression().getName(), result.getCompressedSize(), result.getSize()));
+        if (result.getAppendedSize() > 0 && kernelAppendedData == null) {
+            log(String.format("%d bytes following the compressed kernel are dropped, set kernelAppendedData to keep them.", result.getAppendedSize()), Project.MSG_WARN);
+        }
+    }
+
+    /**
+     * Extracts the requested sections in one pass from the nested resource.
+     */
+    private BootImageFile extractStream(final TaskMetrics metrics, final MessageDigest sha) throws IOException {
+        List<Resource> resources = listBootImageResources();
+        if (resources.size() != 1) {
+            throw new IllegalArgumentException("Either the bootImage attribute or exactly one nested resource is needed.");
+        }
+        if (sectionStore != null) {
+            throw new IllegalArgumentException("The section store is not supported when reading a nested resource.");
+        }
+        Resource resource = resources.get(0);
+        log(String.format("Reading boot image: %s", resource));
+        @Cleanup
+        InputStream input = new BufferedInputStream(resource.getInputStream());
+        return StreamingBootImage.read(input, new StreamingBootImage.SectionHandler() {
+
+            @Override
+            public void section(BootImageSection section, InputStream content) throws IOException {
+                String sectionName = section.getName();
+                int size = section.getSize();
+                File output = verifyOnly ? null : getOutput(sectionName);
+                InputStream sectionContent = sha != null ? new DigestInputStream(content, sha) : content;
+                if (output != null && decompressKernel && BootImageFile.KERNEL.equals(sectionName)) {
+                    decompressKernel(sectionContent, output, size, metrics);
+                } else if (output != null) {
+                    log(String.format("Extracting %s: %s", sectionName, output));
+                    long start = metrics.now();
+                    @Cleanup
+                    OutputStream outputStream = BinaryUtils.createOutputStream(output);
+                    byte[] chunk = BinaryUtils.acquireArray();
+                    try {
+                        int sizeRead;
+                        long chunks = 0;
+                        while ((sizeRead = sectionContent.read(chunk)) != -1) {
+                            outputStream.write(chunk, 0, sizeRead);
+                            chunks++;
+                        }
+                        metrics.record(sectionName, start, size, chunks);
+                    } finally {
+                        BinaryUtils.release(chunk);
+                    }
+                }
+                if (BootImageFile.RAMDISK.equals(sectionName) && ramdiskDirectory != null && !verifyOnly && size > 0) {
+                    log(String.format("Unpacking ramdisk: %s", ramdiskDirectory));
+                    long start = metrics.now();
+                    @Cleanup
+                    InputStream ramdiskContent = new BufferedInputStream(output != null ? new FileInputStream(output) : sectionContent);
+                    RamdiskDirectory.unpack(ramdiskContent, ramdiskDirectory, ramdiskList);
+                    metrics.record("ramdiskUnpack", start, size, 0);
+                }
+                if (sha != null) {
+                    byte[] chunk = BinaryUtils.acquireArray();
+                    try {
+                        while (sectionContent.read(chunk) != -1) {
+                            // the remaining bytes of the section are only hashed
+                        }
+                    } finally {
+                        BinaryUtils.release(chunk);
+                    }
+                    BinaryUtils.writeIntLittleEndian(sha, size);
+                }
+            }
+        });
     }
 }
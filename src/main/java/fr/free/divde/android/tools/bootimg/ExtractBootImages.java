@@ -0,0 +1,71 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Extracts every boot image of the nested filesets. The kernel, ramdisk and second attributes are output patterns,
+ * relative to destDir, in which "*" is replaced by the part of the image path matched by the from pattern.
+ */
+@Getter
+@Setter
+public class ExtractBootImages extends BootImageBatchTask {
+
+    /** output pattern: kernel */
+    private String kernel;
+    /** output pattern: ramdisk */
+    private String ramdisk;
+    /** output pattern: second */
+    private String second;
+    /** directory of a content-addressed section store */
+    private File sectionStore;
+
+    @Override
+    protected long process(File baseDir, String relativePath) throws Exception {
+        ExtractBootImage task = new ExtractBootImage();
+        task.bindToOwner(this);
+        task.setBootImage(new File(baseDir, relativePath));
+        task.setKernel(mapOutputFile(relativePath, kernel));
+        task.setRamdisk(mapOutputFile(relativePath, ramdisk));
+        task.setSecond(mapOutputFile(relativePath, second));
+        task.setSectionStore(sectionStore);
+        BootImageFile header = task.extract();
+        long size = 0;
+        if (task.getKernel() != null) {
+            size += header.getKernelSize();
+        }
+        if (task.getRamdisk() != null) {
+            size += header.getRamdiskSize();
+        }
+        if (task.getSecond() != null) {
+            size += header.getSecondSize();
+        }
+        return size;
+    }
+
+    private File mapOutputFile(String relativePath, String toPattern) {
+        File file = mapFile(getOutputDir(), relativePath, toPattern);
+        if (file != null) {
+            file.getParentFile().mkdirs();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Extracts the sections of a vendor_boot image (header version 3 or 4), and each ramdisk of its vendor ramdisk table.
+ */
+@Getter
+@Setter
+public class ExtractVendorBootImage extends BootImageTask {
+
+    /** input file */
+    private File bootImage;
+    /** output file: all the vendor ramdisks */
+    private File vendorRamdisk;
+    /** output directory: each vendor ramdisk in its own file, vendor_ramdisk00, vendor_ramdisk01... */
+    private File vendorRamdiskDirectory;
+    /** output file: DTB */
+    private File dtb;
+    /** output file: vendor ramdisk table */
+    private File vendorRamdiskTable;
+    /** output file: bootconfig */
+    private File bootconfig;
+    private String storeHeaderVersion;
+    private String storePageSize;
+    private String storeBaseAddr;
+    private String storeName;
+    private String storeArgs;
+    /** property which receives the comma separated names of the vendor ramdisks */
+    private String storeVendorRamdiskNames;
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            VendorBootImageFile header = extract();
+            storeProperty(storeHeaderVersion, Integer.toString(header.getHeaderVersion()));
+            storeProperty(storePageSize, String.format("0x%08X", header.getPageSize()));
+            storeProperty(storeBaseAddr, String.format("0x%08X", header.getBaseAddr()));
+            storeProperty(storeName, header.getName());
+            storeProperty(storeArgs, header.getArgs());
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    private void storeProperty(String propertyName, String propertyValue) {
+        if (propertyName != null) {
+            getProject().setProperty(propertyName, propertyValue);
+        }
+    }
+
+    /**
+     * Reads the header of the vendor_boot image and extracts the requested sections.
+     */
+    public VendorBootImageFile extract() throws IOException {
+        TaskMetrics metrics = new TaskMetrics("extractVendorBootImage", String.valueOf(bootImage));
+        log(String.format("Reading vendor boot image: %s", bootImage));
+        long start = metrics.now();
+        @Cleanup
+        RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "r");
+        VendorBootImageFile header = new VendorBootImageFile();
+        header.read(bootImageAccess);
+        metrics.record("header", start, header.getHeaderSize(), 1);
+
+        extractSection(metrics, bootImageAccess, header.getSection(VendorBootImageFile.VENDOR_RAMDISK), 0, header.getVendorRamdiskSize(), vendorRamdisk);
+        extractSection(metrics, bootImageAccess, header.getSection(VendorBootImageFile.DTB), 0, header.getDtbSize(), dtb);
+        if (header.getHeaderVersion() >= 4) {
+            extractSection(metrics, bootImageAccess, header.getSection(VendorBootImageFile.VENDOR_RAMDISK_TABLE), 0, header.getVendorRamdiskTableSize(), vendorRamdiskTable);
+            extractSection(metrics, bootImageAccess, header.getSection(VendorBootImageFile.BOOTCONFIG), 0, header.getBootconfigSize(), bootconfig);
+        }
+        List<VendorBootImageFile.VendorRamdiskEntry> entries = header.readVendorRamdiskTable(bootImageAccess.getChannel());
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < entries.size(); i++) {
+            VendorBootImageFile.VendorRamdiskEntry entry = entries.get(i);
+            if (vendorRamdiskDirectory != null) {
+                vendorRamdiskDirectory.mkdirs();
+                File output = new File(vendorRamdiskDirectory, String.format("vendor_ramdisk%02d", i));
+                extractSection(metrics, bootImageAccess, header.getSection(VendorBootImageFile.VENDOR_RAMDISK), entry.getOffset(), entry.getSize(), output);
+            }
+            if (i > 0) {
+                names.append(',');
+            }
+            names.append(entry.getName());
+        }
+        storeProperty(storeVendorRamdiskNames, names.toString());
+        publishMetrics(metrics);
+        return header;
+    }
+
+    private void extractSection(TaskMetrics metrics, RandomAccessFile bootImageAccess, BootImageSection section, int offset, int size, File output) throws IOException {
+        if (output == null) {
+            return;
+        }
+        log(String.format("Extracting %s: %s", section.getName(), output));
+        long start = metrics.now();
+        @Cleanup
+        RandomAccessFile outputAccess = BinaryUtils.createFile(output);
+        outputAccess.setLength(size);
+        long chunks = BinaryUtils.copyBytes(bootImageAccess.getChannel(), section.getPosition() + offset, outputAccess.getChannel(), 0, size, null);
+        metrics.record(section.getName(), start, size, chunks);
+    }
+}
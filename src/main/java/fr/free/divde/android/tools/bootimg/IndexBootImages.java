@@ -0,0 +1,78 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Updates a boot image index with the headers of the boot images of the nested filesets. Only the images whose size or
+ * modification time changed since the last update are read, and the images which are no longer in the filesets are
+ * removed from the index. Files which are not boot images (vendor_boot images, for example) are skipped, as by
+ * {@link BootImageIndex#updateDirectory}.
+ */
+public class IndexBootImages extends BootImageBatchTask {
+
+    /** index file */
+    @Getter
+    @Setter
+    private File index;
+    private BootImageIndex bootImageIndex;
+    private Set<String> paths;
+
+    @Override
+    public void execute() throws BuildException {
+        if (index == null) {
+            throw new BuildException("The index attribute is mandatory.");
+        }
+        bootImageIndex = new BootImageIndex();
+        paths = Collections.synchronizedSet(new HashSet<String>());
+        try {
+            bootImageIndex.load(index);
+            try {
+                super.execute();
+            } finally {
+                bootImageIndex.retain(paths);
+                bootImageIndex.save(index);
+            }
+            log(String.format("%d boot images indexed in %s", bootImageIndex.getEntries().size(), index));
+        } catch (IOException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    @Override
+    protected long process(File baseDir, String relativePath) throws Exception {
+        File image = new File(baseDir, relativePath);
+        paths.add(image.getAbsolutePath());
+        try {
+            return bootImageIndex.update(image) ? BootImageFile.HEADER_SIZE : 0;
+        } catch (IOException e) {
+            bootImageIndex.remove(image);
+            log(String.format("Not a boot image, skipped: %s (%s)", image, e.getMessage()), Project.MSG_VERBOSE);
+            return 0;
+        }
+    }
+}
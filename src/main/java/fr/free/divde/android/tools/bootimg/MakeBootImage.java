@@ -18,18 +18,33 @@
 package fr.free.divde.android.tools.bootimg;
 
 import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.compress.Compression;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import fr.free.divde.android.tools.metrics.TimedMessageDigest;
+import fr.free.divde.android.tools.ramdisk.RamdiskDirectory;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import lombok.AccessLevel;
 import lombok.Cleanup;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.tools.ant.BuildException;
-import org.apache.tools.ant.Task;
 
 @Getter
 @Setter
-public class MakeBootImage extends Task {
+public class MakeBootImage extends BootImageTask {
 
     /** input file: kernel */
     private File kernel;
@@ -37,91 +52,341 @@ public class MakeBootImage extends Task {
     private File ramdisk;
     /** input file: second */
     private File second;
+    /** input file: recovery DTBO (header version 1 and 2) */
+    private File recoveryDtbo;
+    /** input file: DTB (header version 2) */
+    private File dtb;
+    /** input file: boot signature (header version 4) */
+    private File signature;
     /** output file */
     private File bootImage;
     private String baseAddr;
     private String pageSize;
     private String name;
     private String args;
+    /** rest of the command line (header version 1 and 2) */
+    private String extraArgs;
+    /** version of the header, from 0 (the default) to 4 */
+    private String headerVersion;
+    private String osVersion;
+    private String dtbAddr;
+    /** overlap reading, hashing and writing of the sections on separate threads */
+    private boolean pipelined;
+    /** cache file recording the inputs of the image, to skip the build when they did not change */
+    private File cacheFile;
+    /** also compare the SHA-1 of the input files, not only their size and modification time */
+    private boolean cacheContentHash;
+    /** cache of cacheFile shared by the images of a batch, which saves it once all of them are built */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.PACKAGE)
+    private BuildCache buildCache;
+    /** directory of a content-addressed section store, in which the *Ref attributes are resolved */
+    private File sectionStore;
+    /** SHA-1 of the kernel in the section store, instead of the kernel file */
+    private String kernelRef;
+    /** SHA-1 of the ramdisk in the section store, instead of the ramdisk file */
+    private String ramdiskRef;
+    /** SHA-1 of the second in the section store, instead of the second file */
+    private String secondRef;
+    /** input directory: content of the ramdisk, packed and compressed instead of using the ramdisk file */
+    private File ramdiskDirectory;
+    /** input file: list of the ramdisk entries with their attributes */
+    private File ramdiskList;
+    /** compression of the kernel file (gzip or lz4) before it is added to the image, by default it is added as is */
+    private String compressKernel;
+    /** input file: bytes appended to the kernel (after its compression, if any), for example device trees */
+    private File kernelAppendedData;
+    /** gzip compression level of the packed ramdisk and of the compressed kernel */
+    private int compressionLevel = 6;
+    /** number of threads compressing the packed ramdisk and the kernel */
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+    /** whether the last call to make found the image up to date in the cache, instead of building it */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.NONE)
+    private boolean upToDate;
 
     @Override
     public void execute() throws BuildException {
         try {
+            make();
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
 
-            BootImageFile bootImageHeader = new BootImageFile();
+    /**
+     * Builds the boot image and returns its header.
+     */
+    public BootImageFile make() throws IOException, NoSuchAlgorithmException {
+        TaskMetrics metrics = new TaskMetrics("makeBootImage", String.valueOf(bootImage));
+        BootImageFile bootImageHeader = new BootImageFile();
 
-            if (pageSize != null) {
-                bootImageHeader.setPageSize(Integer.decode(pageSize));
-            }
-            
-            if (baseAddr != null) {
-                bootImageHeader.setBaseAddr(Integer.decode(baseAddr));
-            }
+        if (headerVersion != null) {
+            bootImageHeader.setHeaderVersion(Integer.decode(headerVersion));
+        }
 
-            if (name != null) {
-                bootImageHeader.setName(name);
-            }
+        if (pageSize != null) {
+            bootImageHeader.setPageSize(Integer.decode(pageSize));
+        }
+        
+        if (baseAddr != null) {
+            bootImageHeader.setBaseAddr(Integer.decode(baseAddr));
+        }
 
-            if (args != null) {
-                bootImageHeader.setArgs(args);
-            }
+        if (name != null) {
+            bootImageHeader.setName(name);
+        }
 
-            @Cleanup
-            RandomAccessFile kernelAccess = new RandomAccessFile(kernel, "r");
-            long kernelLength = kernelAccess.length();
-            if (kernelLength > Integer.MAX_VALUE) {
-                throw new RuntimeException(String.format("File is too large: %s is %d bytes", kernel, kernelLength));
+        if (args != null) {
+            bootImageHeader.setArgs(args);
+        }
+
+        if (extraArgs != null) {
+            bootImageHeader.setExtraArgs(extraArgs);
+        }
+
+        if (osVersion != null) {
+            bootImageHeader.setOsVersion(Integer.decode(osVersion));
+        }
+
+        if (dtbAddr != null) {
+            bootImageHeader.setDtbAddr(Long.decode(dtbAddr));
+        }
+
+        SectionStore store = sectionStore != null ? new SectionStore(sectionStore) : null;
+        File kernelFile = resolveSection(kernel, kernelRef, store);
+        File ramdiskFile = resolveSection(ramdisk, ramdiskRef, store);
+        File secondFile = resolveSection(second, secondRef, store);
+
+        if (ramdiskDirectory != null && ramdiskFile != null) {
+            throw new IllegalArgumentException("The ramdisk can either be a file or a directory, not both.");
+        }
+        if ((compressKernel != null || kernelAppendedData != null) && kernelFile == null) {
+            throw new IllegalArgumentException("A kernel is needed to compress it or to append data to it.");
+        }
+
+        upToDate = false;
+        BuildCache cache = null;
+        Properties fingerprint = null;
+        if (cacheFile != null) {
+            long start = metrics.now();
+            cache = buildCache != null ? buildCache : new BuildCache(cacheFile);
+            fingerprint = cache.fingerprint(bootImageHeader, getCacheInputs(kernelFile, ramdiskFile, secondFile), getCacheOptions(), cacheContentHash);
+            BootImageFile existingHeader = cache.getUpToDateHeader(bootImage, fingerprint);
+            metrics.record("cacheCheck", start, 0, 0);
+            if (existingHeader != null) {
+                log(String.format("Boot image is up to date: %s", bootImage));
+                upToDate = true;
+                publishMetrics(metrics);
+                return existingHeader;
             }
-            bootImageHeader.setKernelSize((int) kernelLength);
+        }
 
-            @Cleanup
-            RandomAccessFile ramdiskAccess = new RandomAccessFile(ramdisk, "r");
-            long ramdiskLength = ramdiskAccess.length();
-            if (ramdiskLength > Integer.MAX_VALUE) {
-                throw new RuntimeException(String.format("File is too large: %s is %d bytes", ramdisk, ramdiskLength));
+        @Cleanup("delete")
+        File compressedKernel = null;
+        if (compressKernel != null || kernelAppendedData != null) {
+            Compression compression = compressKernel != null ? Compression.forName(compressKernel) : Compression.NONE;
+            log(String.format("Compressing kernel (%s): %s", compression.getName(), kernelFile));
+            long start = metrics.now();
+            compressedKernel = File.createTempFile("kernel", "." + compression.getName());
+            OutputStream compressedOutput = compression.newOutputStream(new BufferedOutputStream(new FileOutputStream(compressedKernel)), compressionLevel, compressionThreads);
+            try {
+                copy(kernelFile, compressedOutput);
+            } finally {
+                compressedOutput.close();
             }
-            bootImageHeader.setRamdiskSize((int) ramdiskLength);
+            if (kernelAppendedData != null) {
+                @Cleanup
+                OutputStream appendedOutput = new FileOutputStream(compressedKernel, true);
+                copy(kernelAppendedData, appendedOutput);
+            }
+            kernelFile = compressedKernel;
+            metrics.record("kernelCompress", start, compressedKernel.length(), 0);
+        }
 
+        @Cleanup("delete")
+        File packedRamdisk = null;
+        if (ramdiskDirectory != null) {
+            log(String.format("Packing ramdisk: %s", ramdiskDirectory));
+            long start = metrics.now();
+            packedRamdisk = File.createTempFile("ramdisk", ".cpio.gz");
             @Cleanup
-            RandomAccessFile secondAccess = null;
-            long secondLength = 0;
-            if (second != null) {
-                secondAccess = new RandomAccessFile(second, "r");
-                secondLength = secondAccess.length();
-                if (secondLength > Integer.MIN_VALUE) {
-                    throw new RuntimeException(String.format("File is too large: %s is %d bytes", second, secondLength));
+            OutputStream packedOutput = new FileOutputStream(packedRamdisk);
+            RamdiskDirectory.packCompressed(ramdiskDirectory, ramdiskList, packedOutput, compressionLevel, compressionThreads);
+            ramdiskFile = packedRamdisk;
+            metrics.record("ramdiskPack", start, packedRamdisk.length(), 0);
+        }
+
+        Map<String, File> sectionFiles = getSectionFiles(bootImageHeader, kernelFile, ramdiskFile, secondFile);
+        Map<String, RandomAccessFile> sectionAccesses = new HashMap<String, RandomAccessFile>();
+        try {
+            for (Map.Entry<String, File> sectionFile : sectionFiles.entrySet()) {
+                RandomAccessFile sectionAccess = new RandomAccessFile(sectionFile.getValue(), "r");
+                sectionAccesses.put(sectionFile.getKey(), sectionAccess);
+                long sectionLength = sectionAccess.length();
+                if (sectionLength > Integer.MAX_VALUE) {
+                    throw new RuntimeException(String.format("File is too large: %s is %d bytes", sectionFile.getValue(), sectionLength));
                 }
+                bootImageHeader.setSectionSize(sectionFile.getKey(), (int) sectionLength);
             }
-            bootImageHeader.setSecondSize((int) secondLength);
+            return write(bootImageHeader, sectionAccesses, cache, fingerprint, metrics);
+        } finally {
+            for (RandomAccessFile sectionAccess : sectionAccesses.values()) {
+                sectionAccess.close();
+            }
+        }
+    }
 
-            MessageDigest sha = MessageDigest.getInstance("SHA-1");
+    /**
+     * Returns the inputs recorded in the build cache, before they are transformed, by name.
+     */
+    private Map<String, File> getCacheInputs(File kernelFile, File ramdiskFile, File secondFile) {
+        Map<String, File> inputs = new LinkedHashMap<String, File>();
+        inputs.put(BootImageFile.KERNEL, kernelFile);
+        inputs.put(BootImageFile.RAMDISK, ramdiskFile);
+        inputs.put(BootImageFile.SECOND, secondFile);
+        inputs.put(BootImageFile.RECOVERY_DTBO, recoveryDtbo);
+        inputs.put(BootImageFile.DTB, dtb);
+        inputs.put(BootImageFile.SIGNATURE, signature);
+        inputs.put("ramdiskDirectory", ramdiskDirectory);
+        inputs.put("ramdiskList", ramdiskList);
+        inputs.put("kernelAppendedData", kernelAppendedData);
+        return inputs;
+    }
 
-            log(String.format("Writing boot image: %s", bootImage));
-            @Cleanup
-            RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "rw");
-            bootImageAccess.setLength(bootImageHeader.getFileSize());
-            bootImageAccess.seek(bootImageHeader.getKernelPosition());
-            BinaryUtils.copyBytes(kernelAccess, bootImageAccess, bootImageHeader.getKernelSize(), sha);
-            BinaryUtils.fillPadding(bootImageAccess, bootImageHeader.getKernelPadding());
-            BinaryUtils.writeIntLittleEndian(sha, bootImageHeader.getKernelSize());
-            bootImageAccess.seek(bootImageHeader.getRamdiskPosition());
-            BinaryUtils.copyBytes(ramdiskAccess, bootImageAccess, bootImageHeader.getRamdiskSize(), sha);
-            BinaryUtils.fillPadding(bootImageAccess, bootImageHeader.getRamdiskPadding());
-            BinaryUtils.writeIntLittleEndian(sha, bootImageHeader.getRamdiskSize());
-            if (secondLength > 0) {
-                bootImageAccess.seek(bootImageHeader.getSecondPosition());
-                BinaryUtils.copyBytes(secondAccess, bootImageAccess, bootImageHeader.getSecondSize(), sha);
-                BinaryUtils.fillPadding(bootImageAccess, bootImageHeader.getSecondPadding());
+    /**
+     * Returns the options which change the content of the image without being part of its header, by name.
+     */
+    private Map<String, String> getCacheOptions() {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("compressKernel", compressKernel);
+        if (ramdiskDirectory != null || compressKernel != null) {
+            options.put("compressionLevel", Integer.toString(compressionLevel));
+        }
+        return options;
+    }
+
+    /**
+     * Returns the input files of the sections supported by the version of the header, by section name.
+     */
+    private Map<String, File> getSectionFiles(BootImageFile bootImageHeader, File kernelFile, File ramdiskFile, File secondFile) {
+        Map<String, File> inputs = new HashMap<String, File>();
+        inputs.put(BootImageFile.KERNEL, kernelFile);
+        inputs.put(BootImageFile.RAMDISK, ramdiskFile);
+        inputs.put(BootImageFile.SECOND, secondFile);
+        inputs.put(BootImageFile.RECOVERY_DTBO, recoveryDtbo);
+        inputs.put(BootImageFile.DTB, dtb);
+        inputs.put(BootImageFile.SIGNATURE, signature);
+        Map<String, File> sectionFiles = new LinkedHashMap<String, File>();
+        for (String sectionName : bootImageHeader.getSectionNames()) {
+            File input = inputs.remove(sectionName);
+            if (input != null) {
+                sectionFiles.put(sectionName, input);
+            }
+        }
+        for (Map.Entry<String, File> input : inputs.entrySet()) {
+            if (input.getValue() != null) {
+                throw new IllegalArgumentException(String.format("The %s section is not supported by header version %d.", input.getKey(), bootImageHeader.getHeaderVersion()));
+            }
+        }
+        return sectionFiles;
+    }
+
+    private BootImageFile write(BootImageFile bootImageHeader, Map<String, RandomAccessFile> sectionAccesses, BuildCache cache, Properties fingerprint, TaskMetrics metrics) throws IOException, NoSuchAlgorithmException {
+        bootImageHeader.check();
+        MessageDigest pooledSha = BinaryUtils.acquireSha1();
+        try {
+            write(bootImageHeader, sectionAccesses, new TimedMessageDigest(pooledSha, metrics, "hashing"), metrics);
+        } finally {
+            BinaryUtils.release(pooledSha);
+        }
+        if (cache != null) {
+            cache.store(bootImage, fingerprint, bootImageHeader);
+            if (cache != buildCache) {
+                cache.save();
             }
-            BinaryUtils.writeIntLittleEndian(sha, bootImageHeader.getSecondSize());
+        }
+        publishMetrics(metrics);
+        return bootImageHeader;
+    }
+
+    private void write(BootImageFile bootImageHeader, Map<String, RandomAccessFile> sectionAccesses, MessageDigest sha, TaskMetrics metrics) throws IOException {
+        log(String.format("Writing boot image: %s", bootImage));
+        @Cleanup
+        RandomAccessFile bootImageAccess = BinaryUtils.createFile(bootImage);
+        BinaryUtils.preallocate(bootImageAccess, bootImageHeader.getFileSize());
+        if (pipelined) {
+            // the padding of the sections is already zero in the preallocated file
+            long start = metrics.now();
+            PipelinedSectionWriter writer = new PipelinedSectionWriter(bootImageAccess.getChannel(), sha);
+            for (BootImageSection section : bootImageHeader.getSections()) {
+                RandomAccessFile sectionAccess = section.getSize() > 0 ? sectionAccesses.get(section.getName()) : null;
+                writer.addSection(sectionAccess != null ? sectionAccess.getChannel() : null, section.getPosition(), section.getSize(), 0);
+            }
+            writer.run();
+            metrics.record("sections", start, bootImageHeader.getFileSize() - bootImageHeader.getHeaderPageSize(), 0);
+        } else {
+            writeSections(bootImageHeader, bootImageAccess, sectionAccesses, bootImageHeader.hasId() ? sha : null, metrics);
+        }
+        if (bootImageHeader.hasId()) {
             byte[] out = sha.digest();
             byte id[] = bootImageHeader.getId();
             for (int i = out.length - 1; i >= 0; i--) {
                 id[i] = out[i];
             }
-            bootImageHeader.write(bootImageAccess);
-        } catch (Exception e) {
-            throw new BuildException(e);
         }
+        long start = metrics.now();
+        bootImageHeader.write(bootImageAccess);
+        metrics.record("header", start, bootImageHeader.getHeaderPageSize(), 1);
+        bootImageAccess.close();
+    }
+
+    private static void copy(File file, OutputStream output) throws IOException {
+        @Cleanup
+        InputStream input = new FileInputStream(file);
+        byte[] chunk = BinaryUtils.acquireArray();
+        try {
+            int sizeRead;
+            while ((sizeRead = input.read(chunk)) != -1) {
+                output.write(chunk, 0, sizeRead);
+            }
+        } finally {
+            BinaryUtils.release(chunk);
+        }
+    }
+
+    private static File resolveSection(File file, String ref, SectionStore store) throws IOException {
+        if (ref == null) {
+            return file;
+        }
+        if (store == null) {
+            throw new IllegalArgumentException("A section store is needed to resolve section references.");
+        }
+        return store.getExistingFile(ref);
+    }
+
+    /**
+     * Copies the sections in the order of the image, feeding the digest (if any) with the bytes of each section
+     * followed by its size.
+     */
+    private void writeSections(BootImageFile bootImageHeader, RandomAccessFile bootImageAccess, Map<String, RandomAccessFile> sectionAccesses, MessageDigest sha, TaskMetrics metrics) throws IOException {
+        for (BootImageSection section : bootImageHeader.getSections()) {
+            if (section.getSize() > 0) {
+                bootImageAccess.seek(section.getPosition());
+                writeSection(section.getName(), bootImageAccess, sectionAccesses.get(section.getName()), section.getSize(), section.getPadding(), sha, metrics);
+            }
+            if (sha != null) {
+                BinaryUtils.writeIntLittleEndian(sha, section.getSize());
+            }
+        }
+    }
+
+    private void writeSection(String sectionName, RandomAccessFile bootImageAccess, RandomAccessFile sectionAccess, int size, int padding, MessageDigest sha, TaskMetrics metrics) throws IOException {
+        long start = metrics.now();
+        long chunks = BinaryUtils.copyBytes(sectionAccess, bootImageAccess, size, sha);
+        metrics.record(sectionName, start, size, chunks);
+        start = metrics.now();
+        int zeros = BinaryUtils.skipPadding(bootImageAccess, padding);
+        metrics.record("padding", start, zeros, 1);
     }
 }
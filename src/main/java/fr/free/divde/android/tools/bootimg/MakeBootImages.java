@@ -0,0 +1,96 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.io.IOException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Builds one boot image for every kernel of the nested filesets. The ramdisk and second attributes are input patterns,
+ * relative to the fileset directory, and bootImage is an output pattern, relative to destDir. In all of them, "*" is
+ * replaced by the part of the kernel path matched by the from pattern. The other attributes are shared by all images.
+ */
+@Getter
+@Setter
+public class MakeBootImages extends BootImageBatchTask {
+
+    /** input pattern: ramdisk */
+    private String ramdisk;
+    /** input pattern: second */
+    private String second;
+    /** output pattern */
+    private String bootImage;
+    private String baseAddr;
+    private String pageSize;
+    private String name;
+    private String args;
+    private boolean pipelined;
+    private File cacheFile;
+    private boolean cacheContentHash;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private BuildCache buildCache;
+
+    /**
+     * Builds the images, loading the cache file once before the first image and saving it once after the last one.
+     */
+    @Override
+    public void execute() throws BuildException {
+        buildCache = cacheFile != null ? new BuildCache(cacheFile) : null;
+        try {
+            super.execute();
+        } finally {
+            if (buildCache != null) {
+                try {
+                    buildCache.save();
+                } catch (IOException e) {
+                    throw new BuildException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected long process(File baseDir, String relativePath) throws Exception {
+        MakeBootImage task = new MakeBootImage();
+        task.bindToOwner(this);
+        task.setKernel(new File(baseDir, relativePath));
+        task.setRamdisk(mapFile(baseDir, relativePath, ramdisk));
+        task.setSecond(mapFile(baseDir, relativePath, second));
+        File output = mapFile(getOutputDir(), relativePath, bootImage);
+        if (task.getRamdisk() == null || output == null) {
+            throw new IllegalArgumentException(String.format("No ramdisk or bootImage for %s, check the from, ramdisk and bootImage patterns.", relativePath));
+        }
+        output.getParentFile().mkdirs();
+        task.setBootImage(output);
+        task.setBaseAddr(baseAddr);
+        task.setPageSize(pageSize);
+        task.setName(name);
+        task.setArgs(args);
+        task.setPipelined(pipelined);
+        task.setCacheFile(cacheFile);
+        task.setBuildCache(buildCache);
+        task.setCacheContentHash(cacheContentHash);
+        BootImageFile header = task.make();
+        return task.isUpToDate() ? 0 : header.getFileSize();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Builds a vendor_boot image (header version 3 or 4) from one or more vendor ramdisks, a DTB and a bootconfig.
+ */
+@Getter
+@Setter
+public class MakeVendorBootImage extends BootImageTask {
+
+    /** output file */
+    private File bootImage;
+    /** input file: vendor ramdisk, added as the first entry of the vendor ramdisk table */
+    private File vendorRamdisk;
+    /** input file: DTB */
+    private File dtb;
+    /** input file: bootconfig (header version 4) */
+    private File bootconfig;
+    /** version of the header, 3 or 4 (the default) */
+    private String headerVersion;
+    private String baseAddr;
+    private String pageSize;
+    private String name;
+    private String args;
+    private String dtbAddr;
+    private final List<Ramdisk> ramdisks = new ArrayList<Ramdisk>();
+
+    /**
+     * Nested element: additional vendor ramdisk, with its name and type in the vendor ramdisk table.
+     */
+    @Getter
+    @Setter
+    public static class Ramdisk {
+
+        private File file;
+        private String name = "";
+        /** none, platform (the default), recovery, dlkm or a number */
+        private String type = "platform";
+    }
+
+    public Ramdisk createRamdisk() {
+        Ramdisk ramdisk = new Ramdisk();
+        ramdisks.add(ramdisk);
+        return ramdisk;
+    }
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            make();
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Builds the vendor_boot image and returns its header.
+     */
+    public VendorBootImageFile make() throws IOException {
+        TaskMetrics metrics = new TaskMetrics("makeVendorBootImage", String.valueOf(bootImage));
+        VendorBootImageFile header = new VendorBootImageFile();
+        if (headerVersion != null) {
+            header.setHeaderVersion(Integer.decode(headerVersion));
+        }
+        if (pageSize != null) {
+            header.setPageSize(Integer.decode(pageSize));
+        }
+        if (baseAddr != null) {
+            header.setBaseAddr(Integer.decode(baseAddr));
+        }
+        if (name != null) {
+            header.setName(name);
+        }
+        if (args != null) {
+            header.setArgs(args);
+        }
+        if (dtbAddr != null) {
+            header.setDtbAddr(Long.decode(dtbAddr));
+        }
+
+        List<Ramdisk> allRamdisks = new ArrayList<Ramdisk>();
+        if (vendorRamdisk != null) {
+            Ramdisk ramdisk = new Ramdisk();
+            ramdisk.setFile(vendorRamdisk);
+            allRamdisks.add(ramdisk);
+        }
+        allRamdisks.addAll(ramdisks);
+        if (header.getHeaderVersion() < 4 && allRamdisks.size() > 1) {
+            throw new IllegalArgumentException("Several vendor ramdisks need header version 4.");
+        }
+        if (header.getHeaderVersion() < 4 && bootconfig != null) {
+            throw new IllegalArgumentException("The bootconfig section needs header version 4.");
+        }
+        List<VendorBootImageFile.VendorRamdiskEntry> entries = new ArrayList<VendorBootImageFile.VendorRamdiskEntry>();
+        long vendorRamdiskSize = 0;
+        for (Ramdisk ramdisk : allRamdisks) {
+            VendorBootImageFile.VendorRamdiskEntry entry = new VendorBootImageFile.VendorRamdiskEntry();
+            entry.setOffset((int) vendorRamdiskSize);
+            entry.setSize(checkSize(ramdisk.getFile()));
+            entry.setName(ramdisk.getName());
+            entry.setType(decodeType(ramdisk.getType()));
+            entries.add(entry);
+            vendorRamdiskSize += entry.getSize();
+        }
+        if (vendorRamdiskSize > Integer.MAX_VALUE) {
+            throw new RuntimeException(String.format("Vendor ramdisks are too large: %d bytes", vendorRamdiskSize));
+        }
+        header.setVendorRamdiskSize((int) vendorRamdiskSize);
+        header.setDtbSize(dtb != null ? checkSize(dtb) : 0);
+        ByteBuffer table = null;
+        if (header.getHeaderVersion() >= 4) {
+            table = header.encodeVendorRamdiskTable(entries);
+            header.setBootconfigSize(bootconfig != null ? checkSize(bootconfig) : 0);
+        }
+        header.check();
+
+        log(String.format("Writing vendor boot image: %s", bootImage));
+        @Cleanup
+        RandomAccessFile bootImageAccess = BinaryUtils.createFile(bootImage);
+        BinaryUtils.preallocate(bootImageAccess, header.getFileSize());
+        long start = metrics.now();
+        header.write(bootImageAccess);
+        metrics.record("header", start, header.getHeaderPageSize(), 1);
+        BootImageSection section = header.getSection(VendorBootImageFile.VENDOR_RAMDISK);
+        for (int i = 0; i < allRamdisks.size(); i++) {
+            copySection(metrics, VendorBootImageFile.VENDOR_RAMDISK, allRamdisks.get(i).getFile(), bootImageAccess, section.getPosition() + entries.get(i).getOffset());
+        }
+        copySection(metrics, VendorBootImageFile.DTB, dtb, bootImageAccess, header.getSection(VendorBootImageFile.DTB).getPosition());
+        if (table != null) {
+            start = metrics.now();
+            BinaryUtils.writeFully(bootImageAccess.getChannel(), header.getSection(VendorBootImageFile.VENDOR_RAMDISK_TABLE).getPosition(), table);
+            metrics.record(VendorBootImageFile.VENDOR_RAMDISK_TABLE, start, header.getVendorRamdiskTableSize(), 1);
+            copySection(metrics, VendorBootImageFile.BOOTCONFIG, bootconfig, bootImageAccess, header.getSection(VendorBootImageFile.BOOTCONFIG).getPosition());
+        }
+        bootImageAccess.close();
+        publishMetrics(metrics);
+        return header;
+    }
+
+    private static int checkSize(File file) {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new RuntimeException(String.format("File is too large: %s is %d bytes", file, length));
+        }
+        return (int) length;
+    }
+
+    private static int decodeType(String type) {
+        String[] names = {"none", "platform", "recovery", "dlkm"};
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(type)) {
+                return i;
+            }
+        }
+        return Integer.decode(type);
+    }
+
+    private static void copySection(TaskMetrics metrics, String sectionName, File input, RandomAccessFile bootImageAccess, long position) throws IOException {
+        if (input == null) {
+            return;
+        }
+        long start = metrics.now();
+        @Cleanup
+        RandomAccessFile inputAccess = new RandomAccessFile(input, "r");
+        long chunks = BinaryUtils.copyBytes(inputAccess.getChannel(), 0, bootImageAccess.getChannel(), position, inputAccess.length(), null);
+        metrics.record(sectionName, start, inputAccess.length(), chunks);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.Cleanup;
+import lombok.Getter;
+
+/**
+ * Read-only view of a boot or vendor_boot image mapped in memory. The header is decoded once, and each section is
+ * mapped on its own and exposed as a buffer backed by the mapping, so nothing is copied until the caller reads it, and
+ * images larger than 2 GB can be mapped.
+ */
+public class MappedBootImage {
+
+    @Getter
+    private final AbstractBootImageFile header;
+    private final ByteBuffer headerPage;
+    private final Map<String, ByteBuffer> sections;
+
+    private MappedBootImage(AbstractBootImageFile header, ByteBuffer headerPage, Map<String, ByteBuffer> sections) {
+        this.header = header;
+        this.headerPage = headerPage;
+        this.sections = sections;
+    }
+
+    public static MappedBootImage map(File file) throws IOException {
+        @Cleanup
+        RandomAccessFile access = new RandomAccessFile(file, "r");
+        return map(access.getChannel());
+    }
+
+    /**
+     * Maps the given channel. The mappings stay valid after the channel is closed.
+     */
+    public static MappedBootImage map(FileChannel channel) throws IOException {
+        AbstractBootImageFile header = AbstractBootImageFile.readAny(channel);
+        ByteBuffer headerPage = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.getHeaderPageSize());
+        Map<String, ByteBuffer> sections = new LinkedHashMap<String, ByteBuffer>();
+        for (BootImageSection section : header.getSections()) {
+            sections.put(section.getName(), channel.map(FileChannel.MapMode.READ_ONLY, section.getPosition(), section.getSize()));
+        }
+        return new MappedBootImage(header, headerPage, sections);
+    }
+
+    /**
+     * Returns the header page, including the padding up to the first section.
+     */
+    public ByteBuffer getHeaderPage() {
+        return view(headerPage);
+    }
+
+    /**
+     * Returns a new read-only buffer covering the section with the given name, or an empty buffer if the image has no
+     * such section. Each call returns an independent buffer, so that sections can be consumed from several threads at
+     * the same time.
+     */
+    public ByteBuffer getSection(String name) {
+        ByteBuffer section = sections.get(name);
+        return section != null ? view(section) : ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+
+    public ByteBuffer getKernel() {
+        return getSection(BootImageFile.KERNEL);
+    }
+
+    public ByteBuffer getRamdisk() {
+        return getSection(BootImageFile.RAMDISK);
+    }
+
+    public ByteBuffer getSecond() {
+        return getSection(BootImageFile.SECOND);
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer) {
+        return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
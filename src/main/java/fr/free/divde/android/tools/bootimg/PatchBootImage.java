@@ -0,0 +1,119 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.metrics.TaskMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Changes the name, command line or load addresses of a boot image by rewriting its header page in place, without
+ * copying the sections.
+ */
+@Getter
+@Setter
+public class PatchBootImage extends BootImageTask {
+
+    /** input and output file */
+    private File bootImage;
+    private String baseAddr;
+    private String kernelAddr;
+    private String ramdiskAddr;
+    private String secondAddr;
+    private String tagsAddr;
+    private String name;
+    private String args;
+    /** compute the id again from the sections; the id does not depend on the header, so it is kept by default */
+    private boolean recomputeId;
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            patch();
+        } catch (BuildException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Patches the header of the boot image and returns it.
+     */
+    public BootImageFile patch() throws IOException, NoSuchAlgorithmException {
+        TaskMetrics metrics = new TaskMetrics("patchBootImage", String.valueOf(bootImage));
+        log(String.format("Patching boot image: %s", bootImage));
+        @Cleanup
+        RandomAccessFile bootImageAccess = new RandomAccessFile(bootImage, "rw");
+        FileChannel channel = bootImageAccess.getChannel();
+        long start = metrics.now();
+        BootImageFile bootImageHeader = new BootImageFile();
+        bootImageHeader.read(channel);
+        metrics.record("header", start, BootImageFile.HEADER_SIZE, 1);
+        List<BootImageSection> sections = bootImageHeader.getSections();
+
+        if (!bootImageHeader.hasNameAndAddresses() && (baseAddr != null || kernelAddr != null || ramdiskAddr != null || secondAddr != null || tagsAddr != null || name != null)) {
+            throw new BuildException(String.format("Boot image header version %d has no name or load addresses, only args can be patched: %s", bootImageHeader.getHeaderVersion(), bootImage));
+        }
+        if (baseAddr != null) {
+            bootImageHeader.setBaseAddr(Integer.decode(baseAddr));
+        }
+        if (kernelAddr != null) {
+            bootImageHeader.setKernelAddr(Integer.decode(kernelAddr));
+        }
+        if (ramdiskAddr != null) {
+            bootImageHeader.setRamdiskAddr(Integer.decode(ramdiskAddr));
+        }
+        if (secondAddr != null) {
+            bootImageHeader.setSecondAddr(Integer.decode(secondAddr));
+        }
+        if (tagsAddr != null) {
+            bootImageHeader.setTagsAddr(Integer.decode(tagsAddr));
+        }
+        if (name != null) {
+            bootImageHeader.setName(name);
+        }
+        if (args != null) {
+            bootImageHeader.setArgs(args);
+        }
+
+        if (recomputeId) {
+            start = metrics.now();
+            bootImageHeader.computeId(channel);
+            long hashedBytes = 0;
+            for (BootImageSection section : sections) {
+                hashedBytes += section.getSize();
+            }
+            metrics.record("hashing", start, hashedBytes, sections.size());
+        }
+
+        start = metrics.now();
+        bootImageHeader.patch(channel, sections);
+        metrics.record("patch", start, bootImageHeader.getKernelPosition(), 1);
+        publishMetrics(metrics);
+        return bootImageHeader;
+    }
+}
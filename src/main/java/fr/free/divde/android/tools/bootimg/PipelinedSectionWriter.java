@@ -0,0 +1,229 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes the sections of a boot image with reading, hashing and writing running on separate threads. Chunks go from
+ * the reader to the digest and then to the writer through queues, and a bounded pool of buffers limits the amount of
+ * data in flight. The digest is fed by a single thread, in the same order as the sequential copy: the bytes of each
+ * section followed by its size as a little endian integer.
+ */
+public class PipelinedSectionWriter {
+
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+    private static final Chunk END = new Chunk(null, 0, false, -1);
+    private final FileChannel dstChannel;
+    private final MessageDigest messageDigest;
+    private final int chunkSize;
+    private final int bufferCount;
+    private final List<Section> sections = new ArrayList<Section>();
+
+    public PipelinedSectionWriter(FileChannel dstChannel, MessageDigest messageDigest) {
+        this(dstChannel, messageDigest, BinaryUtils.getChunkSize(), DEFAULT_BUFFER_COUNT);
+    }
+
+    public PipelinedSectionWriter(FileChannel dstChannel, MessageDigest messageDigest, int chunkSize, int bufferCount) {
+        if (chunkSize <= 0 || bufferCount <= 0) {
+            throw new IllegalArgumentException(String.format("Unsupported value for chunkSize (%d<=0) or bufferCount (%d<=0).", chunkSize, bufferCount));
+        }
+        this.dstChannel = dstChannel;
+        this.messageDigest = messageDigest;
+        this.chunkSize = chunkSize;
+        this.bufferCount = bufferCount;
+    }
+
+    /**
+     * Adds a section to write. The size bytes read from srcChannel are written at dstPosition, followed by padding zero
+     * bytes. srcChannel is read from its current position and can be null if size is 0.
+     */
+    public void addSection(FileChannel srcChannel, long dstPosition, int size, int padding) {
+        sections.add(new Section(srcChannel, dstPosition, size, padding));
+    }
+
+    public void run() throws IOException {
+        // buffers of the default size come from the pool of BinaryUtils, and go back to it if the write succeeds
+        final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.add(chunkSize == BinaryUtils.getChunkSize() ? BinaryUtils.acquireBuffer() : ByteBuffer.allocateDirect(chunkSize));
+        }
+        final BlockingQueue<Chunk> toHash = new LinkedBlockingQueue<Chunk>();
+        final BlockingQueue<Chunk> toWrite = new LinkedBlockingQueue<Chunk>();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            CompletionService<Void> stages = new ExecutorCompletionService<Void>(executor);
+            stages.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    readSections(freeBuffers, toHash);
+                    return null;
+                }
+            });
+            stages.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    hashChunks(toHash, toWrite);
+                    return null;
+                }
+            });
+            stages.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    writeChunks(toWrite, freeBuffers);
+                    return null;
+                }
+            });
+            for (int i = 0; i < 3; i++) {
+                stages.take().get();
+            }
+            for (ByteBuffer buffer : freeBuffers) {
+                BinaryUtils.release(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing sections.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void readSections(BlockingQueue<ByteBuffer> freeBuffers, BlockingQueue<Chunk> toHash) throws IOException, InterruptedException {
+        for (Section section : sections) {
+            long srcPosition = section.size > 0 ? section.srcChannel.position() : 0;
+            long dstPosition = section.dstPosition;
+            int length = section.size;
+            while (length > 0) {
+                ByteBuffer buffer = freeBuffers.take();
+                buffer.clear();
+                if (buffer.capacity() > length) {
+                    buffer.limit(length);
+                }
+                BinaryUtils.readFully(section.srcChannel, srcPosition, buffer);
+                buffer.flip();
+                int sizeRead = buffer.remaining();
+                toHash.put(new Chunk(buffer, dstPosition, true, -1));
+                srcPosition += sizeRead;
+                dstPosition += sizeRead;
+                length -= sizeRead;
+            }
+            int padding = section.padding;
+            while (padding > 0) {
+                ByteBuffer buffer = freeBuffers.take();
+                buffer.clear();
+                int zeros = Math.min(padding, buffer.capacity());
+                for (int i = 0; i < zeros; i++) {
+                    buffer.put((byte) 0);
+                }
+                buffer.flip();
+                toHash.put(new Chunk(buffer, dstPosition, false, -1));
+                dstPosition += zeros;
+                padding -= zeros;
+            }
+            toHash.put(new Chunk(null, 0, true, section.size));
+        }
+        toHash.put(END);
+    }
+
+    private void hashChunks(BlockingQueue<Chunk> toHash, BlockingQueue<Chunk> toWrite) throws IOException, InterruptedException {
+        while (true) {
+            Chunk chunk = toHash.take();
+            if (chunk == END) {
+                toWrite.put(END);
+                return;
+            }
+            if (chunk.buffer == null) {
+                BinaryUtils.writeIntLittleEndian(messageDigest, chunk.sectionSize);
+                continue;
+            }
+            if (chunk.hashed) {
+                messageDigest.update(chunk.buffer);
+                chunk.buffer.rewind();
+            }
+            toWrite.put(chunk);
+        }
+    }
+
+    private void writeChunks(BlockingQueue<Chunk> toWrite, BlockingQueue<ByteBuffer> freeBuffers) throws IOException, InterruptedException {
+        while (true) {
+            Chunk chunk = toWrite.take();
+            if (chunk == END) {
+                return;
+            }
+            BinaryUtils.writeFully(dstChannel, chunk.position, chunk.buffer);
+            freeBuffers.put(chunk.buffer);
+        }
+    }
+
+    private static final class Section {
+
+        private final FileChannel srcChannel;
+        private final long dstPosition;
+        private final int size;
+        private final int padding;
+
+        private Section(FileChannel srcChannel, long dstPosition, int size, int padding) {
+            this.srcChannel = srcChannel;
+            this.dstPosition = dstPosition;
+            this.size = size;
+            this.padding = padding;
+        }
+    }
+
+    private static final class Chunk {
+
+        /** data to write, or null for the end of a section */
+        private final ByteBuffer buffer;
+        private final long position;
+        /** whether the data is part of the digest (padding is not) */
+        private final boolean hashed;
+        /** size of the section that ends, for the end of a section */
+        private final int sectionSize;
+
+        private Chunk(ByteBuffer buffer, long position, boolean hashed, int sectionSize) {
+            this.buffer = buffer;
+            this.position = position;
+            this.hashed = hashed;
+            this.sectionSize = sectionSize;
+        }
+    }
+}
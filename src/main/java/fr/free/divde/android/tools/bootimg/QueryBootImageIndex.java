@@ -0,0 +1,82 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.util.List;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Lists the boot images of an index which match all the given criteria, without reading the images.
+ */
+@Getter
+@Setter
+public class QueryBootImageIndex extends Task {
+
+    /** index file */
+    private File index;
+    private String baseAddr;
+    private String pageSize;
+    private String kernelSize;
+    private String ramdiskSize;
+    private String secondSize;
+    private String name;
+    /** fragment of the command line */
+    private String args;
+    /** property which receives the paths of the matching images */
+    private String property;
+    private String separator = ",";
+
+    @Override
+    public void execute() throws BuildException {
+        try {
+            BootImageIndex bootImageIndex = new BootImageIndex();
+            bootImageIndex.load(index);
+            BootImageIndex.Query query = new BootImageIndex.Query();
+            query.setBaseAddr(decode(baseAddr));
+            query.setPageSize(decode(pageSize));
+            query.setKernelSize(decode(kernelSize));
+            query.setRamdiskSize(decode(ramdiskSize));
+            query.setSecondSize(decode(secondSize));
+            query.setName(name);
+            query.setArgs(args);
+            List<BootImageIndex.Entry> entries = bootImageIndex.query(query);
+            StringBuilder paths = new StringBuilder();
+            for (BootImageIndex.Entry entry : entries) {
+                log(entry.getPath());
+                if (paths.length() > 0) {
+                    paths.append(separator);
+                }
+                paths.append(entry.getPath());
+            }
+            log(String.format("%d matching boot images.", entries.size()));
+            if (property != null) {
+                getProject().setProperty(property, paths.toString());
+            }
+        } catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    private static Integer decode(String value) {
+        return value != null ? Integer.decode(value) : null;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Validates every boot image of the nested filesets with {@link BootImageScanner}, and writes a JSON report with one
+ * line per image. Problems found in the images are logged and reported, they only fail the build if failOnProblem is
+ * set.
+ */
+@Getter
+@Setter
+public class ScanBootImages extends BootImageBatchTask {
+
+    /** output file: JSON report, one object per line */
+    private File report;
+    /** comma separated names of the checks to run, all of them by default */
+    private String checks;
+    /** comma separated names of classes implementing BootImageCheck, run in addition to the built-in checks */
+    private String checkClasses;
+    /** name of a property receiving the comma separated paths of the images with problems */
+    private String property;
+    private boolean failOnProblem;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private BootImageScanner scanner;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Writer reportWriter;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private List<String> invalidImages;
+
+    @Override
+    public void execute() throws BuildException {
+        scanner = new BootImageScanner();
+        invalidImages = Collections.synchronizedList(new ArrayList<String>());
+        try {
+            if (checkClasses != null) {
+                for (String className : checkClasses.split(",")) {
+                    scanner.addCheck((BootImageCheck) Class.forName(className.trim(), true, getClass().getClassLoader()).getDeclaredConstructor().newInstance());
+                }
+            }
+            if (checks != null) {
+                List<String> names = new ArrayList<String>();
+                for (String name : checks.split(",")) {
+                    names.add(name.trim());
+                }
+                scanner.retainChecks(names);
+            }
+            reportWriter = report != null ? BootImageScanner.openReport(report) : null;
+            try {
+                super.execute();
+            } finally {
+                if (reportWriter != null) {
+                    reportWriter.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new BuildException(e);
+        } catch (ReflectiveOperationException e) {
+            throw new BuildException(e);
+        }
+        Collections.sort(invalidImages);
+        log(String.format("%d boot images with problems", invalidImages.size()));
+        if (property != null) {
+            StringBuilder paths = new StringBuilder();
+            for (String path : invalidImages) {
+                if (paths.length() > 0) {
+                    paths.append(',');
+                }
+                paths.append(path);
+            }
+            getProject().setProperty(property, paths.toString());
+        }
+        if (failOnProblem && !invalidImages.isEmpty()) {
+            throw new BuildException(String.format("%d boot images have problems.", invalidImages.size()));
+        }
+    }
+
+    @Override
+    protected long process(File baseDir, String relativePath) throws Exception {
+        BootImageScanner.Result result = scanner.scan(new File(baseDir, relativePath));
+        if (!result.isValid()) {
+            invalidImages.add(result.getPath());
+            for (BootImageScanner.Problem problem : result.getProblems()) {
+                log(String.format("%s: %s: %s", result.getPath(), problem.getCheck(), problem.getMessage()), Project.MSG_WARN);
+            }
+        }
+        if (reportWriter != null) {
+            BootImageScanner.writeResult(reportWriter, result);
+        }
+        return result.getSize();
+    }
+}
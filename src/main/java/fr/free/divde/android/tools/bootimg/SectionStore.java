@@ -0,0 +1,119 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import lombok.Cleanup;
+import lombok.Getter;
+
+/**
+ * Content-addressed store of boot image sections. Each section is stored once, in a file named after its SHA-1, and
+ * output files are hard links to the stored files, so identical sections of many images share the same disk blocks.
+ * Stored files are read-only, and the tasks writing output files delete them before writing, so that a file linked
+ * from the store is never modified in place.
+ */
+@Getter
+public class SectionStore {
+
+    private final File directory;
+
+    public SectionStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the file of the store which contains the section with the given SHA-1 (as an hexadecimal string).
+     */
+    public File getFile(String hash) {
+        if (!hash.matches("[0-9a-f]{40}")) {
+            throw new IllegalArgumentException(String.format("Invalid section reference: '%s'", hash));
+        }
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Returns the file of the store which contains the section with the given SHA-1, checking that it exists.
+     */
+    public File getExistingFile(String hash) throws IOException {
+        File file = getFile(hash);
+        if (!file.isFile()) {
+            throw new IOException(String.format("Section %s is not in the store %s", hash, directory));
+        }
+        return file;
+    }
+
+    /**
+     * Adds the size bytes at position in channel to the store, unless they are already there, and returns their SHA-1.
+     */
+    public String put(FileChannel channel, long position, int size) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        String hash;
+        try {
+            sha.update(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+            hash = BinaryUtils.toHex(sha.digest());
+        } finally {
+            BinaryUtils.release(sha);
+        }
+        File file = getFile(hash);
+        if (!file.isFile()) {
+            File parent = file.getParentFile();
+            parent.mkdirs();
+            File tempFile = File.createTempFile(hash, ".tmp", parent);
+            try {
+                @Cleanup
+                RandomAccessFile tempAccess = new RandomAccessFile(tempFile, "rw");
+                BinaryUtils.copyBytes(channel, position, tempAccess.getChannel(), 0, size, null);
+                tempAccess.close();
+                tempFile.setReadOnly();
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // stored in the meantime by another thread or process
+            } finally {
+                tempFile.delete();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Makes target a hard link to the stored section with the given SHA-1, or a copy of it if the file system does not
+     * support hard links between those locations.
+     */
+    public void link(String hash, File target) throws IOException {
+        File file = getExistingFile(hash);
+        // files stored by older versions may still be writable
+        file.setReadOnly();
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), file.toPath());
+        } catch (IOException e) {
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (UnsupportedOperationException e) {
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Cleanup;
+
+/**
+ * Reads and writes boot images in a single forward pass over streams, for images which are not in seekable files
+ * (pipes, sockets, archive entries...).
+ */
+public class StreamingBootImage {
+
+    /**
+     * Receives the sections of an image read from a stream.
+     */
+    public interface SectionHandler {
+
+        /**
+         * Called once per section, including empty ones, in the order of the image. content ends at the end of the section, and
+         * the bytes which are not read by the handler are skipped.
+         */
+        void section(BootImageSection section, InputStream content) throws IOException;
+    }
+
+    /**
+     * Reads a boot image of any supported version from input, passing each section to handler, and returns its
+     * header. input is left just after the last section.
+     */
+    public static BootImageFile read(InputStream input, SectionHandler handler) throws IOException {
+        AbstractBootImageFile header = readAny(input, handler);
+        if (!(header instanceof BootImageFile)) {
+            throw new InvalidObjectException(String.format("Expected a boot image, found %s.", header.getClass().getSimpleName()));
+        }
+        return (BootImageFile) header;
+    }
+
+    /**
+     * Reads a boot or vendor_boot image of any supported version from input, passing each section to handler, and
+     * returns its header. input is left just after the last section.
+     */
+    public static AbstractBootImageFile readAny(InputStream input, SectionHandler handler) throws IOException {
+        byte[] prefix = new byte[AbstractBootImageFile.VERSION_PREFIX_SIZE];
+        readFully(input, prefix, 0, prefix.length);
+        AbstractBootImageFile header = AbstractBootImageFile.forPrefix(ByteBuffer.wrap(prefix));
+        byte[] headerBytes = Arrays.copyOf(prefix, Math.max(prefix.length, header.getHeaderSize()));
+        readFully(input, headerBytes, prefix.length, headerBytes.length - prefix.length);
+        header.decode(ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN));
+        header.check();
+        skipFully(input, header.getHeaderPageSize() - headerBytes.length);
+        for (BootImageSection section : header.getSections()) {
+            BoundedInputStream content = new BoundedInputStream(input, section.getSize());
+            handler.section(section, content);
+            skipFully(content, content.remaining);
+            skipFully(input, section.getPadding());
+        }
+        return header;
+    }
+
+    /**
+     * Writes an image to output in one forward pass. The header must already contain the sizes of the sections and the
+     * id, for example from {@link #computeId}. second can be null if its size is 0.
+     */
+    public static void write(OutputStream output, BootImageFile header, InputStream kernel, InputStream ramdisk, InputStream second) throws IOException {
+        Map<String, InputStream> sections = new HashMap<String, InputStream>();
+        sections.put(BootImageFile.KERNEL, kernel);
+        sections.put(BootImageFile.RAMDISK, ramdisk);
+        sections.put(BootImageFile.SECOND, second);
+        write(output, header, sections);
+    }
+
+    /**
+     * Writes an image of any supported version to output in one forward pass, reading each section from the stream
+     * with its name in sections. The header must already contain the sizes of the sections and the id, if its version
+     * has one. Streams of empty sections can be missing.
+     */
+    public static void write(OutputStream output, AbstractBootImageFile header, Map<String, InputStream> sections) throws IOException {
+        header.check();
+        ByteBuffer headerPage = ByteBuffer.allocate((int) header.getHeaderPageSize()).order(ByteOrder.LITTLE_ENDIAN);
+        header.encode(headerPage);
+        output.write(headerPage.array());
+        byte[] chunk = BinaryUtils.acquireArray();
+        try {
+            for (BootImageSection section : header.getSections()) {
+                writeSection(output, sections.get(section.getName()), section.getSize(), section.getPadding(), chunk);
+            }
+        } finally {
+            BinaryUtils.release(chunk);
+        }
+    }
+
+    private static void writeSection(OutputStream output, InputStream input, int size, int padding, byte[] chunk) throws IOException {
+        int length = size;
+        while (length > 0) {
+            int sizeRead = input.read(chunk, 0, Math.min(length, chunk.length));
+            if (sizeRead == -1) {
+                throw new EOFException(String.format("End of section reached too early. Still %d bytes to read.", length));
+            }
+            output.write(chunk, 0, sizeRead);
+            length -= sizeRead;
+        }
+        while (padding > 0) {
+            int zeros = Math.min(padding, chunk.length);
+            Arrays.fill(chunk, 0, zeros, (byte) 0);
+            output.write(chunk, 0, zeros);
+            padding -= zeros;
+        }
+    }
+
+    /**
+     * Sets the section sizes and the id of header from the given files, hashing them ahead of a streamed write, in the
+     * same way as {@link MakeBootImage}. second can be null.
+     */
+    public static void computeId(BootImageFile header, File kernel, File ramdisk, File second) throws IOException, NoSuchAlgorithmException {
+        Map<String, File> sections = new HashMap<String, File>();
+        sections.put(BootImageFile.KERNEL, kernel);
+        sections.put(BootImageFile.RAMDISK, ramdisk);
+        sections.put(BootImageFile.SECOND, second);
+        computeId(header, sections);
+    }
+
+    /**
+     * Sets the section sizes and, if the version of header has one, the id of header from the files with the names of
+     * the sections in sections. Missing files are empty sections.
+     */
+    public static void computeId(BootImageFile header, Map<String, File> sections) throws IOException, NoSuchAlgorithmException {
+        MessageDigest sha = BinaryUtils.acquireSha1();
+        try {
+            for (String sectionName : header.getSectionNames()) {
+                File file = sections.get(sectionName);
+                int size = file != null ? hashFile(sha, file) : 0;
+                header.setSectionSize(sectionName, size);
+                BinaryUtils.writeIntLittleEndian(sha, size);
+            }
+            if (header.hasId()) {
+                byte[] out = sha.digest();
+                System.arraycopy(out, 0, header.getId(), 0, out.length);
+            }
+        } finally {
+            BinaryUtils.release(sha);
+        }
+    }
+
+    private static int hashFile(MessageDigest sha, File file) throws IOException {
+        @Cleanup
+        InputStream input = new FileInputStream(file);
+        byte[] chunk = BinaryUtils.acquireArray();
+        long size = 0;
+        try {
+            int sizeRead;
+            while ((sizeRead = input.read(chunk)) != -1) {
+                sha.update(chunk, 0, sizeRead);
+                size += sizeRead;
+            }
+        } finally {
+            BinaryUtils.release(chunk);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("File is too large: %s is %d bytes", file, size));
+        }
+        return (int) size;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int sizeRead = input.read(buffer, offset, end - offset);
+            if (sizeRead == -1) {
+                throw new EOFException(String.format("End of stream reached too early. Still %d bytes to read.", end - offset));
+            }
+            offset += sizeRead;
+        }
+    }
+
+    private static void skipFully(InputStream input, long length) throws IOException {
+        while (length > 0) {
+            long sizeSkipped = input.skip(length);
+            if (sizeSkipped <= 0) {
+                if (input.read() == -1) {
+                    throw new EOFException(String.format("End of stream reached too early. Still %d bytes to skip.", length));
+                }
+                sizeSkipped = 1;
+            }
+            length -= sizeSkipped;
+        }
+    }
+
+    /**
+     * Gives access to the next bytes of a stream, without closing it.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private BoundedInputStream(InputStream input, long length) {
+            super(input);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read();
+            if (result == -1) {
+                throw new EOFException(String.format("End of stream reached too early. Still %d bytes to read.", remaining));
+            }
+            remaining--;
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int sizeRead = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (sizeRead == -1) {
+                throw new EOFException(String.format("End of stream reached too early. Still %d bytes to read.", remaining));
+            }
+            remaining -= sizeRead;
+            return sizeRead;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            long sizeSkipped = super.skip(Math.min(length, remaining));
+            remaining -= sizeSkipped;
+            return sizeSkipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
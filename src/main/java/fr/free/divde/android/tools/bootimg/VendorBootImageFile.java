@@ -0,0 +1,248 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.bootimg;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+
+/**
+ * Header of a vendor_boot image, in version 3 (followed by the vendor ramdisk and DTB sections) or 4 (adds the vendor
+ * ramdisk table, describing several ramdisks concatenated in the vendor ramdisk section, and the bootconfig section).
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+public class VendorBootImageFile extends AbstractBootImageFile {
+
+    public static final String VENDOR_BOOT_MAGIC = "VNDRBOOT";
+    public static final int VENDOR_BOOT_MAGIC_SIZE = VENDOR_BOOT_MAGIC.length();
+    public static final int VENDOR_BOOT_ARGS_SIZE = 2048;
+    public static final int HEADER_SIZE_V3 = VENDOR_BOOT_MAGIC_SIZE + 5 * 4 + VENDOR_BOOT_ARGS_SIZE + 4 + BootImageFile.BOOT_NAME_SIZE + 4 + 4 + 8;
+    public static final int HEADER_SIZE_V4 = HEADER_SIZE_V3 + 4 * 4;
+    public static final int HEADER_VERSION_OFFSET = VENDOR_BOOT_MAGIC_SIZE;
+    public static final int VENDOR_RAMDISK_NAME_SIZE = 32;
+    public static final int VENDOR_RAMDISK_BOARD_ID_SIZE = 16;
+    public static final int VENDOR_RAMDISK_TABLE_ENTRY_SIZE = 3 * 4 + VENDOR_RAMDISK_NAME_SIZE + VENDOR_RAMDISK_BOARD_ID_SIZE * 4;
+    public static final int VENDOR_RAMDISK_TYPE_NONE = 0;
+    public static final int VENDOR_RAMDISK_TYPE_PLATFORM = 1;
+    public static final int VENDOR_RAMDISK_TYPE_RECOVERY = 2;
+    public static final int VENDOR_RAMDISK_TYPE_DLKM = 3;
+    public static final String VENDOR_RAMDISK = "vendor_ramdisk";
+    public static final String DTB = "dtb";
+    public static final String VENDOR_RAMDISK_TABLE = "vendor_ramdisk_table";
+    public static final String BOOTCONFIG = "bootconfig";
+    private String magic = VENDOR_BOOT_MAGIC;
+    /** version of the header layout, 3 or 4 */
+    private int headerVersion = 4;
+    /** flash page size we assume */
+    private int pageSize = BootImageFile.DEFAULT_PAGE_SIZE;
+    /** physical load addr */
+    private int kernelAddr = BootImageFile.DEFAULT_BASE_ADDR + BootImageFile.OFFSET_KERNEL_ADDR;
+    /** physical load addr */
+    private int ramdiskAddr = BootImageFile.DEFAULT_BASE_ADDR + BootImageFile.OFFSET_RAMDISK_ADDR;
+    /** size in bytes of all the vendor ramdisks */
+    private int vendorRamdiskSize;
+    /** command line */
+    @NonNull
+    private String args = "";
+    /** physical addr for kernel tags */
+    private int tagsAddr = BootImageFile.DEFAULT_BASE_ADDR + BootImageFile.OFFSET_TAGS_ADDR;
+    /** asciiz product name */
+    @NonNull
+    private String name = "";
+    /** size in bytes */
+    private int dtbSize;
+    /** physical load addr */
+    private long dtbAddr = BootImageFile.DEFAULT_BASE_ADDR + BootImageFile.OFFSET_DTB_ADDR;
+    /** size in bytes (version 4) */
+    private int vendorRamdiskTableSize;
+    /** number of entries in the vendor ramdisk table (version 4) */
+    private int vendorRamdiskTableEntryNum;
+    /** size in bytes of each entry of the vendor ramdisk table (version 4) */
+    private int vendorRamdiskTableEntrySize = VENDOR_RAMDISK_TABLE_ENTRY_SIZE;
+    /** size in bytes (version 4) */
+    private int bootconfigSize;
+
+    /**
+     * Entry of the vendor ramdisk table: a ramdisk stored at offset in the vendor ramdisk section.
+     */
+    @Data
+    public static class VendorRamdiskEntry {
+
+        private int size;
+        private int offset;
+        private int type = VENDOR_RAMDISK_TYPE_PLATFORM;
+        @NonNull
+        private String name = "";
+        private int[] boardId = new int[VENDOR_RAMDISK_BOARD_ID_SIZE];
+    }
+
+    @Override
+    public int getHeaderSize() {
+        return headerVersion >= 4 ? HEADER_SIZE_V4 : HEADER_SIZE_V3;
+    }
+
+    @Override
+    protected String[] getSectionNames() {
+        if (headerVersion >= 4) {
+            return new String[]{VENDOR_RAMDISK, DTB, VENDOR_RAMDISK_TABLE, BOOTCONFIG};
+        }
+        return new String[]{VENDOR_RAMDISK, DTB};
+    }
+
+    @Override
+    protected int[] getSectionSizes() {
+        if (headerVersion >= 4) {
+            return new int[]{vendorRamdiskSize, dtbSize, vendorRamdiskTableSize, bootconfigSize};
+        }
+        return new int[]{vendorRamdiskSize, dtbSize};
+    }
+
+    @Override
+    public void decode(ByteBuffer header) {
+        magic = BinaryUtils.readString(header, VENDOR_BOOT_MAGIC_SIZE);
+        headerVersion = header.getInt();
+        pageSize = header.getInt();
+        kernelAddr = header.getInt();
+        ramdiskAddr = header.getInt();
+        vendorRamdiskSize = header.getInt();
+        args = BinaryUtils.readString(header, VENDOR_BOOT_ARGS_SIZE);
+        tagsAddr = header.getInt();
+        name = BinaryUtils.readString(header, BootImageFile.BOOT_NAME_SIZE);
+        // header size, computed from the version
+        header.getInt();
+        dtbSize = header.getInt();
+        dtbAddr = header.getLong();
+        if (headerVersion >= 4) {
+            vendorRamdiskTableSize = header.getInt();
+            vendorRamdiskTableEntryNum = header.getInt();
+            vendorRamdiskTableEntrySize = header.getInt();
+            bootconfigSize = header.getInt();
+        }
+    }
+
+    @Override
+    public void encode(ByteBuffer header) {
+        BinaryUtils.writeString(header, VENDOR_BOOT_MAGIC_SIZE, magic);
+        header.putInt(headerVersion);
+        header.putInt(pageSize);
+        header.putInt(kernelAddr);
+        header.putInt(ramdiskAddr);
+        header.putInt(vendorRamdiskSize);
+        BinaryUtils.writeString(header, VENDOR_BOOT_ARGS_SIZE, args);
+        header.putInt(tagsAddr);
+        BinaryUtils.writeString(header, BootImageFile.BOOT_NAME_SIZE, name);
+        header.putInt(getHeaderSize());
+        header.putInt(dtbSize);
+        header.putLong(dtbAddr);
+        if (headerVersion >= 4) {
+            header.putInt(vendorRamdiskTableSize);
+            header.putInt(vendorRamdiskTableEntryNum);
+            header.putInt(vendorRamdiskTableEntrySize);
+            header.putInt(bootconfigSize);
+        }
+    }
+
+    @Override
+    public void check() throws IOException {
+        if (!VENDOR_BOOT_MAGIC.equals(magic)) {
+            throw new InvalidObjectException(String.format("Invalid vendor boot magic. Expected '%s', found '%s'.", VENDOR_BOOT_MAGIC, magic));
+        }
+        if (headerVersion < 3 || headerVersion > BootImageFile.MAX_HEADER_VERSION) {
+            throw new InvalidObjectException(String.format("Unsupported vendor boot header version: %d.", headerVersion));
+        }
+        if (pageSize <= 0 || vendorRamdiskSize < 0 || dtbSize < 0 || vendorRamdiskTableSize < 0 || bootconfigSize < 0) {
+            throw new InvalidObjectException(String.format("Unsupported value for pageSize (%d<=0), vendorRamdiskSize (%d<0), dtbSize (%d<0), vendorRamdiskTableSize (%d<0) or bootconfigSize (%d<0).", pageSize, vendorRamdiskSize, dtbSize, vendorRamdiskTableSize, bootconfigSize));
+        }
+        if ((long) vendorRamdiskTableEntryNum * vendorRamdiskTableEntrySize > vendorRamdiskTableSize || vendorRamdiskTableEntrySize < (vendorRamdiskTableEntryNum > 0 ? VENDOR_RAMDISK_TABLE_ENTRY_SIZE : 0)) {
+            throw new InvalidObjectException(String.format("Invalid vendor ramdisk table: %d entries of %d bytes in %d bytes.", vendorRamdiskTableEntryNum, vendorRamdiskTableEntrySize, vendorRamdiskTableSize));
+        }
+    }
+
+    /**
+     * Reads the entries of the vendor ramdisk table of the image in the given channel. Version 3 images have no table,
+     * their vendor ramdisk section is returned as a single entry.
+     */
+    public List<VendorRamdiskEntry> readVendorRamdiskTable(FileChannel channel) throws IOException {
+        List<VendorRamdiskEntry> entries = new ArrayList<VendorRamdiskEntry>();
+        if (headerVersion < 4) {
+            VendorRamdiskEntry entry = new VendorRamdiskEntry();
+            entry.setSize(vendorRamdiskSize);
+            entries.add(entry);
+            return entries;
+        }
+        ByteBuffer table = ByteBuffer.allocate(vendorRamdiskTableSize).order(ByteOrder.LITTLE_ENDIAN);
+        BinaryUtils.readFully(channel, getSection(VENDOR_RAMDISK_TABLE).getPosition(), table);
+        for (int i = 0; i < vendorRamdiskTableEntryNum; i++) {
+            table.position(i * vendorRamdiskTableEntrySize);
+            VendorRamdiskEntry entry = new VendorRamdiskEntry();
+            entry.setSize(table.getInt());
+            entry.setOffset(table.getInt());
+            entry.setType(table.getInt());
+            entry.setName(BinaryUtils.readString(table, VENDOR_RAMDISK_NAME_SIZE));
+            for (int j = 0; j < VENDOR_RAMDISK_BOARD_ID_SIZE; j++) {
+                entry.getBoardId()[j] = table.getInt();
+            }
+            if (entry.getSize() < 0 || entry.getOffset() < 0 || (long) entry.getOffset() + entry.getSize() > vendorRamdiskSize) {
+                throw new InvalidObjectException(String.format("Vendor ramdisk '%s' is outside of the vendor ramdisk section: %d bytes at %d.", entry.getName(), entry.getSize(), entry.getOffset()));
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Encodes a vendor ramdisk table, and sets the table fields of this header accordingly.
+     */
+    public ByteBuffer encodeVendorRamdiskTable(List<VendorRamdiskEntry> entries) {
+        ByteBuffer table = ByteBuffer.allocate(entries.size() * VENDOR_RAMDISK_TABLE_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (VendorRamdiskEntry entry : entries) {
+            table.putInt(entry.getSize());
+            table.putInt(entry.getOffset());
+            table.putInt(entry.getType());
+            BinaryUtils.writeString(table, VENDOR_RAMDISK_NAME_SIZE, entry.getName());
+            for (int j = 0; j < VENDOR_RAMDISK_BOARD_ID_SIZE; j++) {
+                table.putInt(entry.getBoardId()[j]);
+            }
+        }
+        table.flip();
+        vendorRamdiskTableSize = table.remaining();
+        vendorRamdiskTableEntryNum = entries.size();
+        vendorRamdiskTableEntrySize = VENDOR_RAMDISK_TABLE_ENTRY_SIZE;
+        return table;
+    }
+
+    public void setBaseAddr(int base) {
+        setKernelAddr(base + BootImageFile.OFFSET_KERNEL_ADDR);
+        setRamdiskAddr(base + BootImageFile.OFFSET_RAMDISK_ADDR);
+        setTagsAddr(base + BootImageFile.OFFSET_TAGS_ADDR);
+        setDtbAddr((base & 0xFFFFFFFFL) + BootImageFile.OFFSET_DTB_ADDR);
+    }
+
+    public int getBaseAddr() {
+        return getKernelAddr() - BootImageFile.OFFSET_KERNEL_ADDR;
+    }
+}
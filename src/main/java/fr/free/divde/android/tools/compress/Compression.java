@@ -0,0 +1,113 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.compress;
+
+import fr.free.divde.android.tools.ramdisk.ParallelGzipOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compression formats of kernels and ramdisks, recognized by their magic bytes. Only gzip and the legacy LZ4 format
+ * (the one of the Linux kernel and of lz4 -l) are supported for decompression and compression, with pure Java code;
+ * the other formats are only detected.
+ */
+public enum Compression {
+
+    NONE("none"),
+    GZIP("gzip", 0x1F, 0x8B),
+    LZ4_LEGACY("lz4", 0x02, 0x21, 0x4C, 0x18),
+    LZ4_FRAME("lz4frame", 0x04, 0x22, 0x4D, 0x18),
+    XZ("xz", 0xFD, '7', 'z', 'X', 'Z', 0x00),
+    LZMA("lzma", 0x5D, 0x00, 0x00),
+    BZIP2("bzip2", 'B', 'Z', 'h'),
+    ZSTD("zstd", 0x28, 0xB5, 0x2F, 0xFD);
+
+    /** number of bytes needed by {@link #detect} */
+    public static final int MAGIC_SIZE = 6;
+    private final String name;
+    private final int[] magic;
+
+    private Compression(String name, int... magic) {
+        this.name = name;
+        this.magic = magic;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns true if data in this format can be decompressed and compressed.
+     */
+    public boolean isSupported() {
+        return this == NONE || this == GZIP || this == LZ4_LEGACY;
+    }
+
+    /**
+     * Returns the format of the data starting with the given bytes, or NONE if it is not recognized.
+     */
+    public static Compression detect(byte[] prefix, int length) {
+        for (Compression compression : values()) {
+            if (compression.magic.length > 0 && compression.matches(prefix, length)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    private boolean matches(byte[] prefix, int length) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((prefix[i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the format with the given name.
+     */
+    public static Compression forName(String name) {
+        for (Compression compression : values()) {
+            if (compression.name.equals(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown compression: %s", name));
+    }
+
+    /**
+     * Returns a stream compressing the data written to it in this format, on the given number of threads, and writing
+     * it to output. level is the gzip compression level, the LZ4 compression has no level.
+     */
+    public OutputStream newOutputStream(OutputStream output, int level, int threads) throws IOException {
+        switch (this) {
+            case NONE:
+                return output;
+            case GZIP:
+                return new ParallelGzipOutputStream(output, level, threads);
+            case LZ4_LEGACY:
+                return new Lz4LegacyOutputStream(output, threads);
+            default:
+                throw new IllegalArgumentException(String.format("Compression is not supported: %s", name));
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.compress;
+
+import fr.free.divde.android.tools.BinaryUtils;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import lombok.Data;
+
+/**
+ * Decompresses a stream whose format is detected from its first bytes. Gzip streams can have several members, and the
+ * blocks of legacy LZ4 streams are decompressed in parallel. The bytes which follow the compressed data (for example
+ * device trees appended to a kernel) are kept apart, as the inflater reports exactly where the gzip data ends.
+ */
+public class Decompressor {
+
+    private static final int INPUT_CHUNK_SIZE = 64 * 1024;
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+
+    /**
+     * Sizes of the data read and written by {@link #decompress}.
+     */
+    @Data
+    public static class Result {
+
+        private final Compression compression;
+        /** size of the compressed data */
+        private long compressedSize;
+        /** size of the decompressed data */
+        private long size;
+        /** size of the bytes after the compressed data */
+        private long appendedSize;
+    }
+
+    /**
+     * Writes the decompressed content of input to output, and the bytes which follow the compressed data to
+     * appendedOutput (they are dropped if it is null). A legacy LZ4 stream ends at the first word which is not a valid
+     * block size or which is equal to the decompressed size, as the Linux build appends it to LZ4 kernels. Data which is not compressed, or compressed in an unsupported
+     * format, is copied as is to output. LZ4 blocks are decompressed on the given number of threads.
+     */
+    public static Result decompress(InputStream input, OutputStream output, OutputStream appendedOutput, int threads) throws IOException {
+        PushbackInputStream pushbackInput = new PushbackInputStream(input, INPUT_CHUNK_SIZE);
+        byte[] prefix = new byte[Compression.MAGIC_SIZE];
+        int prefixLength = readFully(pushbackInput, prefix, 0, prefix.length);
+        pushbackInput.unread(prefix, 0, prefixLength);
+        Result result = new Result(Compression.detect(prefix, prefixLength));
+        if (result.getCompression() == Compression.GZIP) {
+            gunzip(pushbackInput, output, result);
+        } else if (result.getCompression() == Compression.LZ4_LEGACY) {
+            unlz4(pushbackInput, output, result, threads);
+        } else {
+            result.setSize(copy(pushbackInput, output));
+            result.setCompressedSize(result.getSize());
+            return result;
+        }
+        result.setAppendedSize(copy(pushbackInput, appendedOutput));
+        return result;
+    }
+
+    private static void gunzip(PushbackInputStream input, OutputStream output, Result result) throws IOException {
+        byte[] inputChunk = new byte[INPUT_CHUNK_SIZE];
+        byte[] outputChunk = BinaryUtils.acquireArray();
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            do {
+                int headerSize = readGzipHeader(input);
+                inflater.reset();
+                crc.reset();
+                int inputLength = 0;
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        inputLength = input.read(inputChunk);
+                        if (inputLength == -1) {
+                            throw new EOFException("End of gzip stream reached too early.");
+                        }
+                        inflater.setInput(inputChunk, 0, inputLength);
+                    }
+                    int size;
+                    try {
+                        size = inflater.inflate(outputChunk);
+                    } catch (DataFormatException e) {
+                        throw new InvalidObjectException(String.format("Corrupt gzip stream: %s", e.getMessage()));
+                    }
+                    if (size == 0 && inflater.needsDictionary()) {
+                        throw new InvalidObjectException("Corrupt gzip stream: a dictionary is needed.");
+                    }
+                    output.write(outputChunk, 0, size);
+                    crc.update(outputChunk, 0, size);
+                }
+                input.unread(inputChunk, inputLength - inflater.getRemaining(), inflater.getRemaining());
+                byte[] trailer = new byte[8];
+                if (readFully(input, trailer, 0, trailer.length) < trailer.length) {
+                    throw new EOFException("End of gzip stream reached too early.");
+                }
+                if (readIntLittleEndian(trailer, 0) != (int) crc.getValue() || readIntLittleEndian(trailer, 4) != (int) inflater.getBytesWritten()) {
+                    throw new InvalidObjectException("Corrupt gzip stream: CRC or size mismatch.");
+                }
+                result.setCompressedSize(result.getCompressedSize() + headerSize + inflater.getBytesRead() + trailer.length);
+                result.setSize(result.getSize() + inflater.getBytesWritten());
+            } while (startsWith(input, Compression.GZIP));
+        } finally {
+            inflater.end();
+            BinaryUtils.release(outputChunk);
+        }
+    }
+
+    /**
+     * Reads a gzip member header and returns its size.
+     */
+    private static int readGzipHeader(InputStream input) throws IOException {
+        byte[] header = new byte[10];
+        if (readFully(input, header, 0, header.length) < header.length || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B || header[2] != 8) {
+            throw new InvalidObjectException("Invalid gzip header.");
+        }
+        int flags = header[3];
+        int size = header.length;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            int extraLength = readByte(input) | (readByte(input) << 8);
+            for (int i = 0; i < extraLength; i++) {
+                readByte(input);
+            }
+            size += 2 + extraLength;
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            do {
+                size++;
+            } while (readByte(input) != 0);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            do {
+                size++;
+            } while (readByte(input) != 0);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            readByte(input);
+            readByte(input);
+            size += 2;
+        }
+        return size;
+    }
+
+    private static void unlz4(PushbackInputStream input, OutputStream output, Result result, int threads) throws IOException {
+        byte[] header = new byte[4];
+        readFully(input, header, 0, header.length);
+        result.setCompressedSize(header.length);
+        int maxBlockSize = Lz4Block.maxCompressedLength(Lz4LegacyOutputStream.BLOCK_SIZE);
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        LinkedList<Future<ByteBuffer>> pendingBlocks = new LinkedList<Future<ByteBuffer>>();
+        try {
+            while (true) {
+                int sizeLength = readFully(input, header, 0, header.length);
+                if (sizeLength < header.length) {
+                    input.unread(header, 0, sizeLength);
+                    break;
+                }
+                int blockSize = readIntLittleEndian(header, 0);
+                if (blockSize == Lz4LegacyOutputStream.MAGIC) {
+                    // concatenated stream
+                    result.setCompressedSize(result.getCompressedSize() + header.length);
+                    continue;
+                }
+                if (blockSize <= 0 || blockSize > maxBlockSize) {
+                    // not a block size: the compressed data ends here
+                    input.unread(header);
+                    break;
+                }
+                long pendingMaxSize = (long) pendingBlocks.size() * Lz4LegacyOutputStream.BLOCK_SIZE;
+                if (blockSize >= result.getSize() && blockSize <= result.getSize() + pendingMaxSize) {
+                    // may be the decompressed size appended by the Linux build (size_append) after the last block
+                    while (!pendingBlocks.isEmpty()) {
+                        result.setSize(result.getSize() + write(output, pendingBlocks.removeFirst()));
+                    }
+                    if (blockSize == result.getSize()) {
+                        input.unread(header);
+                        break;
+                    }
+                }
+                final byte[] block = new byte[blockSize];
+                if (readFully(input, block, 0, blockSize) < blockSize) {
+                    throw new EOFException("End of LZ4 stream reached too early.");
+                }
+                result.setCompressedSize(result.getCompressedSize() + header.length + blockSize);
+                Callable<ByteBuffer> decompression = new Callable<ByteBuffer>() {
+
+                    @Override
+                    public ByteBuffer call() throws IOException {
+                        return decompressBlock(block);
+                    }
+                };
+                if (executor == null) {
+                    result.setSize(result.getSize() + write(output, decompressBlock(block)));
+                    continue;
+                }
+                pendingBlocks.add(executor.submit(decompression));
+                while (pendingBlocks.size() > threads) {
+                    result.setSize(result.getSize() + write(output, pendingBlocks.removeFirst()));
+                }
+            }
+            while (!pendingBlocks.isEmpty()) {
+                result.setSize(result.getSize() + write(output, pendingBlocks.removeFirst()));
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static ByteBuffer decompressBlock(byte[] block) throws IOException {
+        byte[] data = new byte[Lz4LegacyOutputStream.BLOCK_SIZE];
+        int size = Lz4Block.decompress(block, 0, block.length, data, 0, data.length);
+        return ByteBuffer.wrap(data, 0, size);
+    }
+
+    private static int write(OutputStream output, Future<ByteBuffer> block) throws IOException {
+        try {
+            return write(output, block.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static int write(OutputStream output, ByteBuffer block) throws IOException {
+        output.write(block.array(), block.position(), block.remaining());
+        return block.remaining();
+    }
+
+    /**
+     * Copies input to output, or only skips it if output is null, and returns the number of bytes.
+     */
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] chunk = BinaryUtils.acquireArray();
+        try {
+            long size = 0;
+            int sizeRead;
+            while ((sizeRead = input.read(chunk)) != -1) {
+                if (output != null) {
+                    output.write(chunk, 0, sizeRead);
+                }
+                size += sizeRead;
+            }
+            return size;
+        } finally {
+            BinaryUtils.release(chunk);
+        }
+    }
+
+    private static boolean startsWith(PushbackInputStream input, Compression compression) throws IOException {
+        byte[] prefix = new byte[Compression.MAGIC_SIZE];
+        int prefixLength = readFully(input, prefix, 0, prefix.length);
+        input.unread(prefix, 0, prefixLength);
+        return Compression.detect(prefix, prefixLength) == compression;
+    }
+
+    /**
+     * Reads up to length bytes, stopping only at the end of the stream, and returns the number of bytes read.
+     */
+    private static int readFully(InputStream input, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int sizeRead = input.read(buffer, offset + total, length - total);
+            if (sizeRead == -1) {
+                break;
+            }
+            total += sizeRead;
+        }
+        return total;
+    }
+
+    private static int readByte(InputStream input) throws IOException {
+        int b = input.read();
+        if (b == -1) {
+            throw new EOFException("End of gzip header reached too early.");
+        }
+        return b;
+    }
+
+    private static int readIntLittleEndian(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8) | ((buffer[offset + 2] & 0xFF) << 16) | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.compress;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.util.Arrays;
+
+/**
+ * Pure Java codec of LZ4 blocks. The compressor is greedy, with a hash table of the last position of each 4 bytes
+ * sequence, and produces blocks which any LZ4 decoder accepts.
+ */
+public class Lz4Block {
+
+    private static final int MIN_MATCH = 4;
+    /** the last match must start at least this number of bytes before the end of the block */
+    private static final int MF_LIMIT = 12;
+    /** the last bytes of the block are always literals */
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 16;
+
+    /**
+     * Returns the maximum size of a compressed block of length bytes.
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses length bytes of src at offset into dst at dstOffset, which must have room for
+     * {@link #maxCompressedLength} bytes, and returns the size of the compressed block.
+     */
+    public static int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int anchor = offset;
+        int position = offset;
+        int d = dstOffset;
+        if (length >= MF_LIMIT + 1) {
+            int[] table = new int[1 << HASH_LOG];
+            Arrays.fill(table, -1);
+            int matchEnd = end - LAST_LITERALS;
+            while (position + MF_LIMIT <= end) {
+                int sequence = readInt(src, position);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = table[hash];
+                table[hash] = position;
+                if (ref < 0 || position - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    position++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchEnd && src[ref + matchLength] == src[position + matchLength]) {
+                    matchLength++;
+                }
+                while (position > anchor && ref > offset && src[position - 1] == src[ref - 1]) {
+                    position--;
+                    ref--;
+                    matchLength++;
+                }
+                int token = d;
+                d = writeLiterals(src, anchor, position - anchor, dst, d);
+                dst[d++] = (byte) (position - ref);
+                dst[d++] = (byte) ((position - ref) >>> 8);
+                int extraLength = matchLength - MIN_MATCH;
+                dst[token] |= (byte) Math.min(extraLength, 15);
+                if (extraLength >= 15) {
+                    d = writeLengthBytes(dst, d, extraLength - 15);
+                }
+                position += matchLength;
+                anchor = position;
+            }
+        }
+        return writeLiterals(src, anchor, end - anchor, dst, d) - dstOffset;
+    }
+
+    /**
+     * Writes the token (without the match length) and the literals of a sequence, and returns the new position in dst.
+     */
+    private static int writeLiterals(byte[] src, int literalsStart, int literals, byte[] dst, int d) {
+        dst[d++] = (byte) (Math.min(literals, 15) << 4);
+        if (literals >= 15) {
+            d = writeLengthBytes(dst, d, literals - 15);
+        }
+        System.arraycopy(src, literalsStart, dst, d, literals);
+        return d + literals;
+    }
+
+    private static int writeLengthBytes(byte[] dst, int d, int remaining) {
+        while (remaining >= 255) {
+            dst[d++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[d++] = (byte) remaining;
+        return d;
+    }
+
+    /**
+     * Decompresses the length bytes of the block at offset in src into dst at dstOffset, without writing more than
+     * dstLength bytes, and returns the size of the decompressed data.
+     */
+    public static int decompress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int dstLength) throws IOException {
+        int s = offset;
+        int end = offset + length;
+        int d = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+        while (s < end) {
+            int token = src[s++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (s >= end) {
+                        throw corrupt(s - offset);
+                    }
+                    b = src[s++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (literals > end - s || literals > dstEnd - d) {
+                throw corrupt(s - offset);
+            }
+            System.arraycopy(src, s, dst, d, literals);
+            s += literals;
+            d += literals;
+            if (s == end) {
+                break;
+            }
+            if (s + 2 > end) {
+                throw corrupt(s - offset);
+            }
+            int matchOffset = (src[s] & 0xFF) | ((src[s + 1] & 0xFF) << 8);
+            s += 2;
+            if (matchOffset == 0 || matchOffset > d - dstOffset) {
+                throw corrupt(s - offset);
+            }
+            int matchLength = token & 0x0F;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (s >= end) {
+                        throw corrupt(s - offset);
+                    }
+                    b = src[s++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - d) {
+                throw corrupt(s - offset);
+            }
+            int match = d - matchOffset;
+            if (matchOffset >= matchLength) {
+                System.arraycopy(dst, match, dst, d, matchLength);
+                d += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    dst[d++] = dst[match++];
+                }
+            }
+        }
+        return d - dstOffset;
+    }
+
+    private static InvalidObjectException corrupt(int position) {
+        return new InvalidObjectException(String.format("Corrupt LZ4 block at offset %d.", position));
+    }
+
+    private static int readInt(byte[] buffer, int position) {
+        return (buffer[position] & 0xFF) | ((buffer[position + 1] & 0xFF) << 8) | ((buffer[position + 2] & 0xFF) << 16) | ((buffer[position + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.compress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream writing the legacy LZ4 format used for Linux kernels: a magic number, then blocks of up to 8 MB, each
+ * compressed on its own and preceded by its compressed size. Blocks are compressed in parallel, and the output does not
+ * depend on the number of threads.
+ */
+public class Lz4LegacyOutputStream extends OutputStream {
+
+    public static final int MAGIC = 0x184C2102;
+    public static final int BLOCK_SIZE = 8 * 1024 * 1024;
+    private final OutputStream output;
+    private final int maxPendingBlocks;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private boolean closed;
+
+    public Lz4LegacyOutputStream(OutputStream output, int threads) throws IOException {
+        this.output = output;
+        this.maxPendingBlocks = 2 * threads;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        writeIntLittleEndian(output, MAGIC);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+            int size = Math.min(length, BLOCK_SIZE - blockLength);
+            System.arraycopy(buffer, offset, block, blockLength, size);
+            blockLength += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        final byte[] data = block;
+        final int dataLength = blockLength;
+        block = last ? null : new byte[BLOCK_SIZE];
+        blockLength = 0;
+        if (dataLength > 0) {
+            if (executor == null) {
+                output.write(compress(data, dataLength));
+            } else {
+                pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() {
+                        return compress(data, dataLength);
+                    }
+                }));
+            }
+        }
+        while (pendingBlocks.size() > maxPendingBlocks || (last && !pendingBlocks.isEmpty())) {
+            writePendingBlock();
+        }
+    }
+
+    private void writePendingBlock() throws IOException {
+        try {
+            output.write(pendingBlocks.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the compressed block preceded by its size.
+     */
+    private static byte[] compress(byte[] data, int dataLength) {
+        byte[] compressed = new byte[4 + Lz4Block.maxCompressedLength(dataLength)];
+        int size = Lz4Block.compress(data, 0, dataLength, compressed, 4);
+        compressed[0] = (byte) size;
+        compressed[1] = (byte) (size >> 8);
+        compressed[2] = (byte) (size >> 16);
+        compressed[3] = (byte) (size >> 24);
+        return Arrays.copyOf(compressed, 4 + size);
+    }
+
+    private static void writeIntLittleEndian(OutputStream output, int value) throws IOException {
+        output.write(new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock(true);
+            output.close();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the blocks of some old data in new data, in the way of rsync: the old data is indexed by the weak rolling
+ * checksum of each of its blocks, the checksum is rolled over the new data one byte at a time, and candidate blocks are
+ * compared byte by byte, then extended as far as the data matches. The index only keeps two ints per block, and both
+ * data buffers are usually mapped files, so the memory used does not depend on the size of the data.
+ */
+public class BlockMatcher {
+
+    /** minimum number of bytes of new data scanned by each task */
+    public static final int MIN_TASK_SIZE = 1024 * 1024;
+    /** candidates compared for each checksum, to bound the time spent on repeated blocks (zeros...) */
+    private static final int MAX_CANDIDATES = 16;
+    private final ByteBuffer oldData;
+    private final int blockSize;
+    private final int[] heads;
+    private final int[] next;
+    private final int mask;
+
+    /**
+     * Indexes the full blocks of oldData, from its position to its limit.
+     */
+    public BlockMatcher(ByteBuffer oldData, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException(String.format("Unsupported value for blockSize (%d<=0).", blockSize));
+        }
+        this.oldData = oldData.slice();
+        this.blockSize = blockSize;
+        int blocks = this.oldData.remaining() / blockSize;
+        int tableSize = Integer.highestOneBit(Math.max(blocks, 1)) * 2;
+        heads = new int[tableSize];
+        Arrays.fill(heads, -1);
+        next = new int[blocks];
+        mask = tableSize - 1;
+        // the first block found for a checksum is preferred, so blocks are added from the end
+        for (int block = blocks - 1; block >= 0; block--) {
+            int slot = slot(checksum(this.oldData, block * blockSize, blockSize));
+            next[block] = heads[slot];
+            heads[slot] = block;
+        }
+    }
+
+    /**
+     * Computes the operations producing newData (from its position to its limit) from the old data, scanning parts of
+     * newData in parallel on executor. Positions in the operations are relative to the positions of the buffers.
+     */
+    public List<DeltaOp> match(ByteBuffer newData, ExecutorService executor, int tasks) throws IOException {
+        final ByteBuffer data = newData.slice();
+        int length = data.remaining();
+        int taskSize = Math.max(MIN_TASK_SIZE, (int) (((long) length + tasks - 1) / Math.max(tasks, 1)));
+        List<Future<List<DeltaOp>>> results = new ArrayList<Future<List<DeltaOp>>>();
+        for (int start = 0; start < length; start += taskSize) {
+            final int taskStart = start;
+            final int taskEnd = (int) Math.min((long) start + taskSize, length);
+            results.add(executor.submit(new Callable<List<DeltaOp>>() {
+
+                @Override
+                public List<DeltaOp> call() {
+                    return match(data.duplicate(), taskStart, taskEnd);
+                }
+            }));
+        }
+        List<DeltaOp> ops = new ArrayList<DeltaOp>();
+        try {
+            for (Future<List<DeltaOp>> result : results) {
+                ops.addAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while matching blocks.", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        return ops;
+    }
+
+    /**
+     * Computes the operations producing the bytes from start to end of newData.
+     */
+    public List<DeltaOp> match(ByteBuffer newData, int start, int end) {
+        ByteBuffer old = oldData.duplicate();
+        List<DeltaOp> ops = new ArrayList<DeltaOp>();
+        int literalStart = start;
+        int position = start;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+        while (position + blockSize <= end) {
+            if (!rolling) {
+                int sum = checksum(newData, position, blockSize);
+                a = sum & 0xFFFF;
+                b = sum >>> 16;
+                rolling = true;
+            }
+            int oldPosition = findBlock(old, newData, position, (b << 16) | a);
+            if (oldPosition >= 0) {
+                int length = blockSize;
+                while (position + length < end && oldPosition + length < old.limit() && newData.get(position + length) == old.get(oldPosition + length)) {
+                    length++;
+                }
+                int back = 0;
+                while (position - back > literalStart && oldPosition - back > 0 && newData.get(position - back - 1) == old.get(oldPosition - back - 1)) {
+                    back++;
+                }
+                if (position - back > literalStart) {
+                    ops.add(new DeltaOp(false, 0, literalStart, position - back - literalStart));
+                }
+                ops.add(new DeltaOp(true, oldPosition - back, position - back, length + back));
+                position += length;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+            if (position + blockSize < end) {
+                int out = newData.get(position) & 0xFF;
+                int in = newData.get(position + blockSize) & 0xFF;
+                a = (a - out + in) & 0xFFFF;
+                b = (b - blockSize * out + a) & 0xFFFF;
+            }
+            position++;
+        }
+        if (end > literalStart) {
+            ops.add(new DeltaOp(false, 0, literalStart, end - literalStart));
+        }
+        return ops;
+    }
+
+    private int findBlock(ByteBuffer old, ByteBuffer newData, int position, int sum) {
+        int candidates = 0;
+        for (int block = heads[slot(sum)]; block >= 0 && candidates < MAX_CANDIDATES; block = next[block], candidates++) {
+            int oldPosition = block * blockSize;
+            if (sameBytes(old, oldPosition, newData, position, blockSize)) {
+                return oldPosition;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean sameBytes(ByteBuffer first, int firstPosition, ByteBuffer second, int secondPosition, int length) {
+        for (int i = 0; i < length; i++) {
+            if (first.get(firstPosition + i) != second.get(secondPosition + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Weak checksum of rsync: the sum of the bytes in the low 16 bits, the sum of the partial sums in the high 16 bits.
+     */
+    private static int checksum(ByteBuffer data, int position, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data.get(position + i) & 0xFF;
+            b += a;
+        }
+        return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+    }
+
+    private int slot(int sum) {
+        int hash = sum * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
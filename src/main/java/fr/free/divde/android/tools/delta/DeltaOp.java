@@ -0,0 +1,33 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.delta;
+
+import lombok.Data;
+
+/**
+ * Operation of a delta: either length bytes copied from oldPosition in the old data, or length literal bytes taken
+ * from newPosition in the new data. newPosition is the place of the bytes in the new data in both cases.
+ */
+@Data
+public class DeltaOp {
+
+    private final boolean copy;
+    private final long oldPosition;
+    private final long newPosition;
+    private final int length;
+}
@@ -0,0 +1,120 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics listener which cumulates the metrics of all the task executions of the JVM, and exposes them through the
+ * platform MBean server, one MBean per task name. Phases are keyed by "taskName.phaseName".
+ */
+public class JmxMetricsListener implements MetricsListener, MetricsMXBean {
+
+    public static final String OBJECT_NAME = "fr.free.divde.android.tools:type=TaskMetrics";
+    private static JmxMetricsListener instance;
+    private long taskCount;
+    private long totalBytes;
+    private long totalNanos;
+    private final Map<String, Long> phaseNanos = new HashMap<String, Long>();
+    private final Map<String, Long> phaseBytes = new HashMap<String, Long>();
+    private final Map<String, Long> phaseCalls = new HashMap<String, Long>();
+
+    /**
+     * Returns the listener registered in the platform MBean server, registering it on first use.
+     */
+    public static synchronized JmxMetricsListener getInstance() throws JMException {
+        if (instance == null) {
+            JmxMetricsListener listener = new JmxMetricsListener();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(listener, name);
+            instance = listener;
+        }
+        return instance;
+    }
+
+    @Override
+    public synchronized void taskCompleted(TaskMetrics metrics) {
+        taskCount++;
+        totalBytes += metrics.getTotalBytes();
+        totalNanos += metrics.getTotalNanos();
+        for (TaskMetrics.Phase phase : metrics.getPhaseList()) {
+            String key = metrics.getTaskName() + "." + phase.getName();
+            add(phaseNanos, key, phase.getNanos());
+            add(phaseBytes, key, phase.getBytes());
+            add(phaseCalls, key, phase.getCalls());
+        }
+    }
+
+    private static void add(Map<String, Long> map, String key, long value) {
+        Long previous = map.get(key);
+        map.put(key, previous != null ? previous + value : value);
+    }
+
+    @Override
+    public synchronized long getTaskCount() {
+        return taskCount;
+    }
+
+    @Override
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized long getTotalMillis() {
+        return totalNanos / 1000000;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getPhaseMillis() {
+        Map<String, Long> result = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : phaseNanos.entrySet()) {
+            result.put(entry.getKey(), entry.getValue() / 1000000);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getPhaseBytes() {
+        return new HashMap<String, Long>(phaseBytes);
+    }
+
+    @Override
+    public synchronized Map<String, Long> getPhaseCalls() {
+        return new HashMap<String, Long>(phaseCalls);
+    }
+
+    @Override
+    public synchronized void reset() {
+        taskCount = 0;
+        totalBytes = 0;
+        totalNanos = 0;
+        phaseNanos.clear();
+        phaseBytes.clear();
+        phaseCalls.clear();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.metrics;
+
+import java.util.Map;
+
+/**
+ * Cumulated metrics of all the task executions of a JVM, exposed through JMX.
+ */
+public interface MetricsMXBean {
+
+    long getTaskCount();
+
+    long getTotalBytes();
+
+    long getTotalMillis();
+
+    Map<String, Long> getPhaseMillis();
+
+    Map<String, Long> getPhaseBytes();
+
+    Map<String, Long> getPhaseCalls();
+
+    void reset();
+}
@@ -0,0 +1,169 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import lombok.Cleanup;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * Timings and amounts of data of the phases of one task execution. Phases are kept in the order in which they were
+ * first recorded, and recording the same phase again accumulates the values.
+ */
+@Getter
+public class TaskMetrics {
+
+    @Data
+    public static class Phase {
+
+        private final String name;
+        private long nanos;
+        private long bytes;
+        /** number of I/O calls or chunks */
+        private long calls;
+
+        /** throughput in MB/s, or 0 if nothing was measured */
+        public double getMegabytesPerSecond() {
+            return nanos > 0 ? bytes * 1e9 / nanos / (1024 * 1024) : 0;
+        }
+    }
+
+    private final String taskName;
+    private final String target;
+    private final long startNanos = System.nanoTime();
+    private long totalNanos;
+    private long totalBytes;
+    /** phases by name, in the order in which they were first recorded */
+    private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+
+    public TaskMetrics(String taskName, String target) {
+        this.taskName = taskName;
+        this.target = target;
+    }
+
+    /**
+     * Returns the current time, to be passed to {@link #record} at the end of a phase.
+     */
+    public long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a phase which started at phaseStartNanos (from {@link #now}) and ends now. Its bytes are added to the
+     * total number of bytes moved by the task.
+     */
+    public synchronized void record(String phaseName, long phaseStartNanos, long bytes, long calls) {
+        add(phaseName, System.nanoTime() - phaseStartNanos, bytes, calls);
+        totalBytes += bytes;
+    }
+
+    /**
+     * Records the duration of a phase which overlaps other phases, such as hashing during a copy. Its bytes are not
+     * added to the total number of bytes moved by the task.
+     */
+    public synchronized void recordOverlapping(String phaseName, long nanos, long bytes, long calls) {
+        add(phaseName, nanos, bytes, calls);
+    }
+
+    private void add(String phaseName, long nanos, long bytes, long calls) {
+        Phase phase = phases.get(phaseName);
+        if (phase == null) {
+            phase = new Phase(phaseName);
+            phases.put(phaseName, phase);
+        }
+        phase.setNanos(phase.getNanos() + nanos);
+        phase.setBytes(phase.getBytes() + bytes);
+        phase.setCalls(phase.getCalls() + calls);
+    }
+
+    public synchronized List<Phase> getPhaseList() {
+        return new ArrayList<Phase>(phases.values());
+    }
+
+    /**
+     * Marks the end of the task execution.
+     */
+    public void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"task\":").append(quote(taskName));
+        json.append(",\"target\":").append(quote(target));
+        json.append(",\"totalMillis\":").append(format(totalNanos / 1e6));
+        json.append(",\"totalBytes\":").append(totalBytes);
+        json.append(",\"phases\":[");
+        boolean first = true;
+        for (Phase phase : getPhaseList()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"name\":").append(quote(phase.getName()));
+            json.append(",\"millis\":").append(format(phase.getNanos() / 1e6));
+            json.append(",\"bytes\":").append(phase.getBytes());
+            json.append(",\"calls\":").append(phase.getCalls());
+            json.append(",\"megabytesPerSecond\":").append(format(phase.getMegabytesPerSecond()));
+            json.append('}');
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        @Cleanup
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"));
+        writer.write(toJson());
+        writer.write('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.3f", value);
+    }
+
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder result = new StringBuilder(value.length() + 2);
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.metrics;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Message digest which delegates to another one and records the time spent hashing, so that hashing can be reported
+ * separately from the copy it is interleaved with.
+ */
+public class TimedMessageDigest extends MessageDigest {
+
+    private final MessageDigest delegate;
+    private final TaskMetrics metrics;
+    private final String phaseName;
+
+    public TimedMessageDigest(MessageDigest delegate, TaskMetrics metrics, String phaseName) {
+        super(delegate.getAlgorithm());
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.phaseName = phaseName;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        long start = System.nanoTime();
+        delegate.update(input);
+        metrics.recordOverlapping(phaseName, System.nanoTime() - start, 1, 0);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        long start = System.nanoTime();
+        delegate.update(input, offset, len);
+        metrics.recordOverlapping(phaseName, System.nanoTime() - start, len, 1);
+    }
+
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        long start = System.nanoTime();
+        int len = input.remaining();
+        delegate.update(input);
+        metrics.recordOverlapping(phaseName, System.nanoTime() - start, len, 1);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long start = System.nanoTime();
+        byte[] result = delegate.digest();
+        metrics.recordOverlapping(phaseName, System.nanoTime() - start, 0, 0);
+        return result;
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return delegate.getDigestLength();
+    }
+
+    @Override
+    protected void engineReset() {
+        delegate.reset();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.ramdisk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader and writer of cpio archives in the "newc" format, which is the format of Android ramdisks.
+ */
+public class CpioArchive {
+
+    public static final String NEWC_MAGIC = "070701";
+    public static final String TRAILER = "TRAILER!!!";
+    public static final int HEADER_SIZE = 110;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    public static List<CpioEntry> read(InputStream input) throws IOException {
+        List<CpioEntry> entries = new ArrayList<CpioEntry>();
+        byte[] header = new byte[HEADER_SIZE];
+        while (true) {
+            readFully(input, header, HEADER_SIZE);
+            String magic = new String(header, 0, 6, CHARSET);
+            if (!NEWC_MAGIC.equals(magic)) {
+                throw new InvalidObjectException(String.format("Invalid cpio magic. Expected '%s', found '%s'.", NEWC_MAGIC, magic));
+            }
+            CpioEntry entry = new CpioEntry();
+            entry.setIno(readField(header, 0));
+            entry.setMode(readField(header, 1));
+            entry.setUid(readField(header, 2));
+            entry.setGid(readField(header, 3));
+            entry.setNlink(readField(header, 4));
+            entry.setMtime(readField(header, 5));
+            int fileSize = readField(header, 6);
+            entry.setDevMajor(readField(header, 7));
+            entry.setDevMinor(readField(header, 8));
+            entry.setRdevMajor(readField(header, 9));
+            entry.setRdevMinor(readField(header, 10));
+            int nameSize = readField(header, 11);
+            byte[] name = new byte[nameSize + computePadding(HEADER_SIZE + nameSize)];
+            readFully(input, name, name.length);
+            entry.setName(new String(name, 0, Math.max(nameSize - 1, 0), CHARSET));
+            if (TRAILER.equals(entry.getName())) {
+                return entries;
+            }
+            byte[] data = new byte[fileSize];
+            readFully(input, data, fileSize);
+            skipFully(input, computePadding(fileSize));
+            entry.setData(data);
+            entries.add(entry);
+        }
+    }
+
+    public static void write(List<CpioEntry> entries, OutputStream output) throws IOException {
+        for (CpioEntry entry : entries) {
+            writeEntry(output, entry);
+        }
+        CpioEntry trailer = new CpioEntry();
+        trailer.setName(TRAILER);
+        writeEntry(output, trailer);
+    }
+
+    private static void writeEntry(OutputStream output, CpioEntry entry) throws IOException {
+        byte[] name = entry.getName().getBytes(CHARSET);
+        byte[] data = entry.getData();
+        StringBuilder header = new StringBuilder(HEADER_SIZE);
+        header.append(NEWC_MAGIC);
+        int[] fields = {entry.getIno(), entry.getMode(), entry.getUid(), entry.getGid(), entry.getNlink(), entry.getMtime(), data.length,
+            entry.getDevMajor(), entry.getDevMinor(), entry.getRdevMajor(), entry.getRdevMinor(), name.length + 1, 0};
+        for (int field : fields) {
+            header.append(String.format("%08x", field));
+        }
+        output.write(header.toString().getBytes(CHARSET));
+        output.write(name);
+        output.write(new byte[1 + computePadding(HEADER_SIZE + name.length + 1)]);
+        output.write(data);
+        output.write(new byte[computePadding(data.length)]);
+    }
+
+    private static int readField(byte[] header, int index) throws InvalidObjectException {
+        String value = new String(header, 6 + index * 8, 8, CHARSET);
+        try {
+            return (int) Long.parseLong(value, 16);
+        } catch (NumberFormatException e) {
+            throw new InvalidObjectException(String.format("Invalid cpio header field: '%s'", value));
+        }
+    }
+
+    private static int computePadding(int size) {
+        return (4 - (size & 3)) & 3;
+    }
+
+    private static void readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int sizeRead = input.read(buffer, offset, length - offset);
+            if (sizeRead == -1) {
+                throw new EOFException(String.format("End of cpio archive reached too early. Still %d bytes to read.", length - offset));
+            }
+            offset += sizeRead;
+        }
+    }
+
+    private static void skipFully(InputStream input, int length) throws IOException {
+        readFully(input, new byte[length], length);
+    }
+}
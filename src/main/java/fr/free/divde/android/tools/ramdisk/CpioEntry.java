@@ -0,0 +1,61 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.ramdisk;
+
+import lombok.Data;
+
+/**
+ * Entry of a cpio archive in the "newc" format.
+ */
+@Data
+public class CpioEntry {
+
+    public static final int S_IFMT = 0170000;
+    public static final int S_IFDIR = 0040000;
+    public static final int S_IFREG = 0100000;
+    public static final int S_IFLNK = 0120000;
+    private int ino;
+    private int mode;
+    private int uid;
+    private int gid;
+    private int nlink = 1;
+    private int mtime;
+    private int devMajor;
+    private int devMinor;
+    private int rdevMajor;
+    private int rdevMinor;
+    private String name;
+    /** file content, or link target for symbolic links */
+    private byte[] data = new byte[0];
+
+    public int getType() {
+        return mode & S_IFMT;
+    }
+
+    public boolean isDirectory() {
+        return getType() == S_IFDIR;
+    }
+
+    public boolean isRegularFile() {
+        return getType() == S_IFREG;
+    }
+
+    public boolean isSymbolicLink() {
+        return getType() == S_IFLNK;
+    }
+}
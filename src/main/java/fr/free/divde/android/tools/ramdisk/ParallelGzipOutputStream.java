@@ -0,0 +1,169 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.ramdisk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip output stream which compresses fixed size blocks in parallel, in the same way as pigz. Each block is compressed
+ * as raw deflate data with the end of the previous block as dictionary, and all blocks but the last one end with a
+ * sync flush, so that the concatenation is a single deflate stream. As block boundaries do not depend on the number of
+ * threads and the gzip header has no timestamp, the output only depends on the input and the compression level.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 128 * 1024;
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 3};
+    private final OutputStream output;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final ExecutorService executor;
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+    private final CRC32 crc = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private byte[] dictionary;
+    private long totalLength;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream output, int level, int threads) throws IOException {
+        this.output = output;
+        this.level = level;
+        this.maxPendingBlocks = 2 * threads;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        output.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+            int size = Math.min(length, BLOCK_SIZE - blockLength);
+            System.arraycopy(buffer, offset, block, blockLength, size);
+            blockLength += size;
+            offset += size;
+            length -= size;
+        }
+    }
+
+    private void submitBlock(final boolean last) throws IOException {
+        final byte[] data = block;
+        final int dataLength = blockLength;
+        final byte[] blockDictionary = dictionary;
+        crc.update(data, 0, dataLength);
+        totalLength += dataLength;
+        if (dataLength >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(data, dataLength - DICTIONARY_SIZE, dataLength);
+        }
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        Callable<byte[]> compression = new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() {
+                return compress(data, dataLength, blockDictionary, last);
+            }
+        };
+        if (executor == null) {
+            output.write(compress(data, dataLength, blockDictionary, last));
+            return;
+        }
+        pendingBlocks.add(executor.submit(compression));
+        while (pendingBlocks.size() > maxPendingBlocks || (last && !pendingBlocks.isEmpty())) {
+            writePendingBlock();
+        }
+    }
+
+    private void writePendingBlock() throws IOException {
+        try {
+            output.write(pendingBlocks.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private byte[] compress(byte[] data, int dataLength, byte[] blockDictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (blockDictionary != null) {
+                deflater.setDictionary(blockDictionary);
+            }
+            deflater.setInput(data, 0, dataLength);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(dataLength / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int size;
+                do {
+                    size = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, size);
+                } while (size == buffer.length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitBlock(true);
+            int crcValue = (int) crc.getValue();
+            int size = (int) totalLength;
+            output.write(new byte[]{(byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)});
+            output.close();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
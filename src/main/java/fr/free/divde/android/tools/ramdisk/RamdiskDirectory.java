@@ -0,0 +1,248 @@
+/*
+ * Java build tools related to the Android operating system.
+ * Copyright (C) 2011 DivDE <divde@free.fr>
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package fr.free.divde.android.tools.ramdisk;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import lombok.Cleanup;
+
+/**
+ * Unpacks gzip compressed cpio ramdisks to directories and packs them back.
+ * <p>
+ * File systems cannot keep everything a ramdisk contains (owners, exact modes, device nodes...), so unpacking can also
+ * write a list file with one line per entry, in the order of the archive:
+ * <pre>
+ * mode uid gid mtime ino nlink devMajor devMinor rdevMajor rdevMinor name
+ * </pre>
+ * where mode is in octal and other numbers in decimal. When packing, listed entries keep their order and attributes,
+ * listed entries which cannot exist on disk (device nodes, fifos...) are kept as they are, and files which are not
+ * listed are appended in name order with default attributes. Without list, all entries get default attributes. In all
+ * cases, the result only depends on the content of the directory and the list.
+ */
+public class RamdiskDirectory {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final int[] GZIP_MAGIC = {0x1f, 0x8b};
+
+    /**
+     * Unpacks the gzip compressed (or not) cpio archive read from input to directory, and writes the list file if it is
+     * not null.
+     */
+    public static void unpack(InputStream input, File directory, File list) throws IOException {
+        if (!input.markSupported()) {
+            throw new IllegalArgumentException("The input stream must support mark.");
+        }
+        input.mark(2);
+        boolean compressed = input.read() == GZIP_MAGIC[0] && input.read() == GZIP_MAGIC[1];
+        input.reset();
+        List<CpioEntry> entries = CpioArchive.read(compressed ? new GZIPInputStream(input, 64 * 1024) : input);
+        directory.mkdirs();
+        Path root = directory.toPath();
+        Path realRoot = root.toRealPath();
+        for (CpioEntry entry : entries) {
+            Path path = resolve(root, entry.getName());
+            if (path.equals(root)) {
+                continue;
+            }
+            checkRealParent(realRoot, path, entry.getName());
+            if (!Files.isDirectory(path.getParent())) {
+                Files.createDirectories(path.getParent());
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(path);
+            } else if (entry.isRegularFile()) {
+                // an existing file or link is replaced, not written through
+                Files.deleteIfExists(path);
+                Files.write(path, entry.getData());
+                path.toFile().setExecutable((entry.getMode() & 0100) != 0);
+            } else if (entry.isSymbolicLink()) {
+                Files.deleteIfExists(path);
+                Files.createSymbolicLink(path, Paths.get(new String(entry.getData(), CHARSET)));
+            }
+        }
+        if (list != null) {
+            writeList(entries, list);
+        }
+    }
+
+    /**
+     * Packs directory into a cpio archive, using the list file if it is not null and exists, and writes it to output.
+     */
+    public static void pack(File directory, File list, OutputStream output) throws IOException {
+        Path root = directory.toPath();
+        List<CpioEntry> entries = new ArrayList<CpioEntry>();
+        Set<String> names = new HashSet<String>();
+        int nextIno = 300000;
+        if (list != null && list.isFile()) {
+            for (CpioEntry listed : readList(list)) {
+                Path path = resolve(root, listed.getName());
+                if (fillFromDisk(listed, path)) {
+                    entries.add(listed);
+                    names.add(listed.getName());
+                    nextIno = Math.max(nextIno, listed.getIno() + 1);
+                }
+            }
+        }
+        List<Path> paths = new ArrayList<Path>();
+        listPaths(root, paths);
+        for (Path path : paths) {
+            String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+            if (names.contains(name)) {
+                continue;
+            }
+            CpioEntry entry = new CpioEntry();
+            entry.setName(name);
+            entry.setIno(nextIno++);
+            if (Files.isSymbolicLink(path)) {
+                entry.setMode(CpioEntry.S_IFLNK | 0777);
+            } else if (Files.isDirectory(path)) {
+                entry.setMode(CpioEntry.S_IFDIR | 0755);
+            } else {
+                entry.setMode(CpioEntry.S_IFREG | (path.toFile().canExecute() ? 0755 : 0644));
+            }
+            fillFromDisk(entry, path);
+            entries.add(entry);
+        }
+        CpioArchive.write(entries, output);
+    }
+
+    /**
+     * Packs directory and compresses the archive with {@link ParallelGzipOutputStream}.
+     */
+    public static void packCompressed(File directory, File list, OutputStream output, int level, int threads) throws IOException {
+        @Cleanup
+        OutputStream compressed = new ParallelGzipOutputStream(new BufferedOutputStream(output, 64 * 1024), level, threads);
+        pack(directory, list, compressed);
+    }
+
+    /**
+     * Reads the content of the entry from disk. Returns false if the entry should have been on disk but is not there.
+     */
+    private static boolean fillFromDisk(CpioEntry entry, Path path) throws IOException {
+        if (entry.isSymbolicLink()) {
+            if (!Files.isSymbolicLink(path)) {
+                return false;
+            }
+            entry.setData(Files.readSymbolicLink(path).toString().getBytes(CHARSET));
+        } else if (entry.isDirectory()) {
+            return Files.isDirectory(path);
+        } else if (entry.isRegularFile()) {
+            if (!Files.isRegularFile(path)) {
+                return false;
+            }
+            entry.setData(Files.readAllBytes(path));
+        }
+        return true;
+    }
+
+    private static void listPaths(Path directory, List<Path> paths) throws IOException {
+        File[] children = directory.toFile().listFiles();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            Path path = child.toPath();
+            paths.add(path);
+            if (Files.isDirectory(path) && !Files.isSymbolicLink(path)) {
+                listPaths(path, paths);
+            }
+        }
+    }
+
+    private static Path resolve(Path root, String name) throws InvalidObjectException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new InvalidObjectException(String.format("Entry outside of the ramdisk: '%s'", name));
+        }
+        return path;
+    }
+
+    /**
+     * Checks that the parent directory of path, once symbolic links (for example links unpacked from previous entries)
+     * are resolved, is in the ramdisk directory.
+     */
+    private static void checkRealParent(Path realRoot, Path path, String name) throws IOException {
+        Path parent = path.getParent();
+        while (!Files.exists(parent, LinkOption.NOFOLLOW_LINKS)) {
+            parent = parent.getParent();
+        }
+        if (!parent.toRealPath().startsWith(realRoot)) {
+            throw new InvalidObjectException(String.format("Entry outside of the ramdisk through a symbolic link: '%s'", name));
+        }
+    }
+
+    private static void writeList(List<CpioEntry> entries, File list) throws IOException {
+        @Cleanup
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(Files.newOutputStream(list.toPath()), CHARSET));
+        for (CpioEntry entry : entries) {
+            writer.print(String.format("%o %d %d %d %d %d %d %d %d %d %s\n", entry.getMode(), entry.getUid(), entry.getGid(), entry.getMtime(), entry.getIno(),
+                    entry.getNlink(), entry.getDevMajor(), entry.getDevMinor(), entry.getRdevMajor(), entry.getRdevMinor(), entry.getName()));
+        }
+    }
+
+    private static List<CpioEntry> readList(File list) throws IOException {
+        List<CpioEntry> entries = new ArrayList<CpioEntry>();
+        @Cleanup
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(list), CHARSET));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() == 0) {
+                continue;
+            }
+            String[] fields = line.split(" ", 11);
+            if (fields.length != 11) {
+                throw new InvalidObjectException(String.format("Invalid ramdisk list line: '%s'", line));
+            }
+            CpioEntry entry = new CpioEntry();
+            entry.setMode(Integer.parseInt(fields[0], 8));
+            entry.setUid(Integer.parseInt(fields[1]));
+            entry.setGid(Integer.parseInt(fields[2]));
+            entry.setMtime(Integer.parseInt(fields[3]));
+            entry.setIno(Integer.parseInt(fields[4]));
+            entry.setNlink(Integer.parseInt(fields[5]));
+            entry.setDevMajor(Integer.parseInt(fields[6]));
+            entry.setDevMinor(Integer.parseInt(fields[7]));
+            entry.setRdevMajor(Integer.parseInt(fields[8]));
+            entry.setRdevMinor(Integer.parseInt(fields[9]));
+            entry.setName(fields[10]);
+            entries.add(entry);
+        }
+        return entries;
+    }
+}